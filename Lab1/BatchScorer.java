@@ -0,0 +1,161 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+///Scores many messages at once, for example to rescore a whole quarantine after the model changed.
+///The messages are first turned into a sparse matrix in CSR form: row r lists the compiled model slots of
+///the distinct known tokens of message r. Scoring is then one sparse matrix-vector product of that matrix
+///with the vector of per-slot log-odds, log P(w|spam) - log P(w|regular), so every message costs a
+///sequential walk over its row instead of two hash lookups per token. Both steps are split into blocks of
+///rows that run in parallel on a thread pool.
+public class BatchScorer
+{
+	private static final int ROWS_PER_BLOCK = 256;
+
+	private final MessageClassifier classifier;
+	private final double logPriorOdds;
+	private final double[] logOdds;
+	private final ExecutorService pool;
+
+	///sparse message x slot matrix: the columns of row r are columns[rowStart[r]] up to columns[rowStart[r + 1]]
+	public static class Matrix
+	{
+		final int[] rowStart;
+		final int[] columns;
+
+		Matrix(int[] rowStart, int[] columns) {
+			this.rowStart = rowStart;
+			this.columns = columns;
+		}
+
+		public int rows() {
+			return rowStart.length - 1;
+		}
+
+		public int nonZeros() {
+			return rowStart[rowStart.length - 1];
+		}
+	}
+
+	public BatchScorer(CompiledModel model, double logPriorRegular, double logPriorSpam, int alpha, int nThreads) {
+		classifier = new MessageClassifier(model, logPriorRegular, logPriorSpam, alpha);
+		logPriorOdds = logPriorSpam - logPriorRegular;
+		logOdds = new double[model.size()];
+		for(int s = 0; s < logOdds.length; s++) {
+			logOdds[s] = model.logProbGivenSpam(s) - model.logProbGivenRegular(s);
+		}
+		pool = Executors.newFixedThreadPool(nThreads);
+	}
+
+	///read and tokenize the messages into a matrix, one row per message in the given order
+	public Matrix toMatrix(final File[] messages)
+	throws IOException
+	{
+		int nBlocks = (messages.length + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+		ArrayList<Future<int[][]>> blocks = new ArrayList<Future<int[][]>>();
+		for(int b = 0; b < nBlocks; b++) {
+			final int first = b * ROWS_PER_BLOCK;
+			final int last = Math.min(messages.length, first + ROWS_PER_BLOCK);
+			blocks.add(pool.submit(new Callable<int[][]>() {
+				///returns the row lengths and the concatenated columns of the block
+				public int[][] call()
+				throws IOException
+				{
+					ClassifyScratch scratch = new ClassifyScratch();
+					int[] lengths = new int[last - first];
+					int[] columns = new int[1024];
+					int nColumns = 0;
+					for(int r = first; r < last; r++) {
+						int length = scratch.read(messages[r]);
+						int n = classifier.collectSlots(MessageClassifier.wrap(scratch.buffer, 0, length, scratch), scratch);
+						if(nColumns + n > columns.length) {
+							columns = Arrays.copyOf(columns, Math.max(nColumns + n, columns.length * 2));
+						}
+						System.arraycopy(scratch.slots, 0, columns, nColumns, n);
+						nColumns += n;
+						lengths[r - first] = n;
+					}
+					return new int[][] {lengths, Arrays.copyOf(columns, nColumns)};
+				}
+			}));
+		}
+
+		///concatenate the blocks
+		int[] rowStart = new int[messages.length + 1];
+		ArrayList<int[][]> results = new ArrayList<int[][]>();
+		int r = 0;
+		for(Future<int[][]> block : blocks) {
+			int[][] result = get(block);
+			results.add(result);
+			for(int length : result[0]) {
+				rowStart[r + 1] = rowStart[r] + length;
+				r++;
+			}
+		}
+		int[] columns = new int[rowStart[messages.length]];
+		int offset = 0;
+		for(int[][] result : results) {
+			System.arraycopy(result[1], 0, columns, offset, result[1].length);
+			offset += result[1].length;
+		}
+		return new Matrix(rowStart, columns);
+	}
+
+	///the log-odds (log P(spam|message) - log P(regular|message)) of every row of a matrix
+	public double[] score(final Matrix matrix)
+	throws IOException
+	{
+		final double[] scores = new double[matrix.rows()];
+		ArrayList<Future<Object>> blocks = new ArrayList<Future<Object>>();
+		for(int first = 0; first < scores.length; first += ROWS_PER_BLOCK) {
+			final int start = first;
+			final int end = Math.min(scores.length, first + ROWS_PER_BLOCK);
+			blocks.add(pool.submit(new Callable<Object>() {
+				public Object call() {
+					int[] rowStart = matrix.rowStart;
+					int[] columns = matrix.columns;
+					for(int r = start; r < end; r++) {
+						double sum = logPriorOdds;
+						for(int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+							sum += logOdds[columns[k]];
+						}
+						scores[r] = sum;
+					}
+					return null;
+				}
+			}));
+		}
+		for(Future<Object> block : blocks) {
+			get(block);
+		}
+		return scores;
+	}
+
+	///the log-odds of every message
+	public double[] score(File[] messages)
+	throws IOException
+	{
+		return score(toMatrix(messages));
+	}
+
+	///stop the threads of the pool
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	///wait for a block, passing on the IOException of a failed block
+	private static <T> T get(Future<T> block)
+	throws IOException
+	{
+		try {
+			return block.get();
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException("interrupted while scoring");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
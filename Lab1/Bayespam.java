@@ -15,6 +15,8 @@ public class Bayespam
         int counter_spam    = 0;
         int counter_regular = 0;
 
+		int id;						///dense id of the word, used to mark words already seen in a message
+
 		double logProbGivenRegular;	//stores the conditional probabilities of the word
 		double logProbGivenSpam;
 
@@ -55,39 +57,208 @@ public class Bayespam
     // A hash table for the vocabulary (word searching is very fast in a hash table)
     private static Hashtable <String, Multiple_Counter> vocab = new Hashtable <String, Multiple_Counter> ();
 
+	///the id given to the next word added to the vocabulary
+	private static int nextWordId = 0;
+
+	///with the -fields option one vocabulary per header field (HeaderFields), the body one being vocab;
+	///words are added to the vocabulary of currentField
+	private static ArrayList<Hashtable<String, Multiple_Counter>> fieldVocabs = null;
+	private static int currentField = HeaderFields.BODY;
+	private static final HeaderFields trainingFields = new HeaderFields();
+
+	///train on a class-stratified random sample of at most this many messages (0: all messages); the word
+	///counts of a random half of the sample are kept apart to estimate the sampling error
+	private static int sampleSize = 0;
+	private static HashMap<String, int[]> halfCounts = null;
+	private static boolean inFirstHalf = false;
+	private static double[] sampledFraction = new double[2];
+
+	///optional character shingles of the raw bytes as a second feature family; every byte is in n shingles,
+	///so their evidence is weighted 1/n against the words
+	private static ShingleFeatures shingles = null;
+	private static int shingleBits = 20;
+
+	///read the training and test messages with this many reads in flight (0: one after another), tokenizing
+	///the training messages on a pool with a thread per processor
+	private static int ioConcurrency = 0;
+	private static File testDirectory = null;
+
+	///optional write-ahead log of the learned messages with periodic snapshots of the counts, so the training
+	///state survives a crash; messages are committed in groups and a snapshot is taken every checkpointEvery
+	private static File journalDir = null;
+	private static TrainingJournal journal = null;
+	private static int journalGroupSize = 64;
+	private static long checkpointEvery = 100000;
+
+	///after recovering an incomplete training from the journal: the path of the last message it learned,
+	///training skips the messages up to and including it
+	private static String resumeAfter = null;
+
+	///optional inverted index of the training messages, with the words by id and the message ids by path,
+	///and the training messages to unlearn after reading
+	private static InvertedIndex trainingIndex = null;
+	private static ArrayList<String> indexedWords = new ArrayList<String>();
+	private static HashMap<String, Integer> indexedMessages = new HashMap<String, Integer>();
+	private static ArrayList<File> unlearnFiles = new ArrayList<File>();
+
+	///optional off-heap vocabulary, used instead of the hash table when the -offheap option is given
+	private static OffHeapVocab offHeapVocab = null;
+
+	///number of training messages per class, counted while reading or loaded with the counts
+	private static long nMessagesRegular = 0;
+	private static long nMessagesSpam = 0;
+
+	///sharded training: only every shardCount-th message starting at shardIndex is read (-shard i/N)
+	private static int shardIndex = 0;
+	private static int shardCount = 1;
+
+	///count table files to write after reading (-savecounts) or to load instead of reading (-counts)
+	private static File saveCountsFile = null;
+	private static File loadCountsFile = null;
+
+	///optional bounded-memory counting with sorted spill files, enabled with -spill <max buffered tokens>
+	private static SpillingCounter spillCounter = null;
+	private static File spillDir = null;
+
+	///optional rolling window of the last N epochs of counts, enabled with -window N (epoch length set with -epochhours)
+	private static RollingWindow window = null;
+	private static long epochMillis = 24L * 3600 * 1000;
+
+	///optional read-only model used by isSpam, built after training when the -compile option is given
+	private static boolean compile = false;
+	private static CompiledModel compiledModel = null;
+
+	///optional quantized single log-odds model used by isSpam, built from the compiled model with -quantize 8|16
+	private static int quantizeBits = 0;
+	private static QuantizedModel quantizedModel = null;
+
+	///compare the quantized scores of the test set with full precision after testing (-quantizereport);
+	///otherwise the full-precision model is dropped once quantized and scoring reads the quantized table only
+	private static boolean compareQuantized = false;
+
+	///optional blocked Bloom filter of the vocabulary, consulted first by isSpam, enabled with -bloom <bits per token>
+	private static int bloomBitsPerKey = 0;
+	private static BlockedBloomFilter bloomFilter = null;
+	private static long bloomLookups = 0;
+	private static long bloomRejections = 0;
+
+	///optional classification of memory-mapped messages through the MessageClassifier library API (-mmap);
+	///only the compiled or quantized model is used on this path, so options working on the bytes or the
+	///words of a message (-cache, -lsh, -bloom, -shingles) are rejected with it
+	private static boolean mapMessages = false;
+	private static MessageClassifier messageClassifier = null;
+
+	///scores all test messages of a class at once with this many threads (0: one message at a time)
+	private static int batchThreads = 0;
+	private static BatchScorer batchScorer = null;
+
+	///personal model on top of the global vocabulary: learned from a directory with regular and spam
+	///messages of one user, or read from a saved overlay file, and optionally saved
+	private static File overlayFile = null;
+	private static File saveOverlayFile = null;
+	private static UserOverlay userOverlay = null;
+
+	///target false positive rate for the threshold analysis after testing (negative: no analysis)
+	private static double rocTarget = -1;
+
+	///reusable buffers and sets for classification, one per thread
+	private static final ThreadLocal<ClassifyScratch> classifyScratch = new ThreadLocal<ClassifyScratch>() {
+		protected ClassifyScratch initialValue() {
+			return new ClassifyScratch();
+		}
+	};
+
+	///incremented whenever the probabilities change, so cached verdicts of an older model are dropped
+	private static int modelVersion = 0;
+
+	///optional cache of verdicts for duplicate message bodies, enabled with the -cache option
+	private static VerdictCache verdictCache = null;
+
+	///optional index of recent messages whose verdicts are reused for near-duplicates, enabled with the -lsh option
+	private static NearDuplicateIndex nearDuplicates = null;
+
+	///parameters for reusing a verdict: minimum estimated similarity and minimum absolute log-odds of the earlier message
+	private static double lshSimilarity = 0.8;
+	private static double lshConfidence = 10;
+
     ///check if word passes simplification filter
-    private static String cleanWord(String word) {
-        String finalWord = "";
-        for(int i = 0; i<word.length(); i++) {
-            char c = word.charAt(i);
+    static String cleanWord(String word) {
+        StringBuilder finalWord = new StringBuilder(word.length());
+        cleanWord(word, 0, word.length(), finalWord);
+		if(finalWord.length() == 0 || finalWord.length() < alpha) {	///don't return words under the minimum length
+			return "";
+		}
+        return finalWord.toString();
+    }
+
+    ///append the simplified characters from start to end of a text to finalWord
+    static void cleanWord(CharSequence text, int start, int end, StringBuilder finalWord) {
+        for(int i = start; i < end; i++) {
+            char c = text.charAt(i);
             if(Character.isUpperCase(c)) {
                 c = Character.toLowerCase(c);			///set everything to lowercase
             }
             if(Character.isLetter(c)) {					///only add letters (no number or punctuation)
-                finalWord += c;
+                finalWord.append(c);
             }
         }
-		if(finalWord.length() < alpha) {				///don't return words under the minimum length
-			return "";
-		}
-        return finalWord;
     }
     
     // Add a word to the vocabulary
     private static void addWord(String word, MessageType type)
+    throws IOException
     {
         word = cleanWord(word);							///pass word through a simplification algorithm
         if(word == "") {								///if no word is returned, no new word is added
             return;
         }
-        Multiple_Counter counter = new Multiple_Counter();
+        addCleanWord(word, type);
+    }
+
+    ///add a word that already passed cleanWord to the vocabulary
+    private static void addCleanWord(String word, MessageType type)
+    throws IOException
+    {
+        if(spillCounter != null) {						///counts go to the spill buffer, the vocabulary is loaded afterwards
+            spillCounter.add(word, type.ordinal());
+            return;
+        }
+        if(offHeapVocab != null) {						///the off-heap store keeps its own counters
+            offHeapVocab.add(word, type.ordinal());
+            return;
+        }
+        Hashtable<String, Multiple_Counter> vocab = fieldVocabs != null ? fieldVocabs.get(currentField) : Bayespam.vocab;
+        Multiple_Counter counter = vocab.get(word);     // get the counter from the hashtable
 
-        if ( vocab.containsKey(word) ){                  // if word exists already in the vocabulary..
-            counter = vocab.get(word);                  // get the counter from the hashtable
+        if ( counter == null ){                         // if the word is not in the vocabulary yet..
+            counter = new Multiple_Counter();
+            counter.id = nextWordId++;
+            if(trainingIndex != null) {
+                indexedWords.add(word);
+            }
         }
         counter.incrementCounter(type);                 // increase the counter appropriately
+        if(journal != null) {							///log the learn event before the message is complete
+            journal.word(counter.id, word);
+        }
+        if(trainingIndex != null) {						///remember that this message contains the word
+            trainingIndex.add(counter.id);
+        }
 
         vocab.put(word, counter);                       // put the word with its counter into the hashtable
+
+        if(inFirstHalf) {								///count the first half of a sample apart as well
+            int[] half = halfCounts.get(word);
+            if(half == null) {
+                half = new int[2];
+                halfCounts.put(word, half);
+            }
+            half[type.ordinal()]++;
+        }
+
+        if(window != null) {							///remember in which epoch the count was learned
+            window.add(word, type.ordinal());
+        }
     }
 
 
@@ -136,6 +307,23 @@ public class Bayespam
     // Print the current content of the vocabulary
     private static void printVocab()
     {
+        if(offHeapVocab != null) {
+            for(int id = 0; id < offHeapVocab.size(); id++) {
+                System.out.println( offHeapVocab.word(id) + " | in regular: " + offHeapVocab.getCount(id, 0) + 
+                                    " in spam: "    + offHeapVocab.getCount(id, 1));
+            }
+            return;
+        }
+        if(fieldVocabs != null) {						///words of the other fields are shown with the field name
+            for(int f = 0; f < HeaderFields.COUNT; f++) {
+                String prefix = f == HeaderFields.BODY ? "" : HeaderFields.NAMES[f] + ":";
+                for(Map.Entry<String, Multiple_Counter> e : fieldVocabs.get(f).entrySet()) {
+                    System.out.println( prefix + e.getKey() + " | in regular: " + e.getValue().counter_regular + 
+                                        " in spam: "    + e.getValue().counter_spam);
+                }
+            }
+            return;
+        }
         Multiple_Counter counter = new Multiple_Counter();
 
         for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
@@ -164,16 +352,59 @@ public class Bayespam
         }
         
         
-        for (int i = 0; i < messages.length; ++i)
+        if (shardCount > 1 || journal != null) {
+            Arrays.sort(messages);                       ///every shard and every restart must see the messages in the same order
+        }
+
+        for (int i = shardIndex; i < messages.length; i += shardCount)
         {
-			///System.out.println(messages[i]);
-            FileInputStream i_s = new FileInputStream( messages[i] );
+            if (resumeAfter != null) {                   ///learned before the restart
+                if (messages[i].getPath().equals(resumeAfter)) {
+                    resumeAfter = null;
+                }
+                continue;
+            }
+            readMessage(messages[i], type);
+        }
+    }
+
+    ///Read the words from one message and add them to the vocabulary
+    private static void readMessage(File message, MessageType type)
+    throws IOException
+    {
+        if (type == MessageType.NORMAL) {
+            nMessagesRegular++;
+        } else {
+            nMessagesSpam++;
+        }
+        if(trainingIndex != null) {
+            indexedMessages.put(message.getPath(), trainingIndex.startMessage(type.ordinal()));
+        }
+        if(journal != null) {
+            journal.startMessage(type.ordinal());
+        }
+        if(shingles != null) {							///the shingles are counted over the raw bytes, the words are taken from the same bytes
+            ClassifyScratch scratch = classifyScratch.get();
+            int length = scratch.read(message);
+            shingles.learn(scratch.buffer, 0, length, type.ordinal());
+            tokenize(scratch.buffer, length, scratch);
+            for(int t = 0; t < scratch.tokens.size(); t++) {
+                if(scratch.tokens.get(t).length() > 0) {
+                    currentField = scratch.tokenFields[t];
+                    addCleanWord(scratch.tokens.get(t), type);
+                }
+            }
+        } else {
+            FileInputStream i_s = new FileInputStream( message );
             BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
             String line;
-            String word;
+            trainingFields.startMessage();
             
             while ((line = in.readLine()) != null)                      // read a line
             {
+                if(fieldVocabs != null) {
+                    currentField = trainingFields.line(line);			///the words of the line go to the vocabulary of its field
+                }
                 StringTokenizer st = new StringTokenizer(line);         // parse it into words
         
                 while (st.hasMoreTokens())                  // while there are stille words left..
@@ -184,8 +415,301 @@ public class Bayespam
 
             in.close();
         }
+        if(trainingIndex != null) {
+            trainingIndex.endMessage();
+        }
+        if(journal != null) {
+            journal.endMessage(message.getPath());
+            if(journal.checkpointDue()) {
+                checkpoint();
+            }
+        }
     }
 
+	///write a snapshot of the counts and start a new journal segment
+	private static void checkpoint()
+	throws IOException
+	{
+		saveCounts(journal.checkpointFile());
+		journal.commitCheckpoint();
+	}
+
+	///load the latest snapshot and replay the journal after it; the replayed messages are not logged again,
+	///instead a new snapshot is taken, so the new journal segment starts from the recovered ids
+	private static void recoverFromJournal()
+	throws IOException
+	{
+		long start = System.currentTimeMillis();
+		TrainingJournal recovering = journal;
+		journal = null;
+		if(recovering.snapshot() != null) {
+			loadCounts(recovering.snapshot());
+		}
+		long replayed = recovering.replay(new TrainingJournal.Replayer() {
+			public void message(int type, String[] words)
+			throws IOException
+			{
+				MessageType messageType = type == 0 ? MessageType.NORMAL : MessageType.SPAM;
+				if(type == 0) {
+					nMessagesRegular++;
+				} else {
+					nMessagesSpam++;
+				}
+				for(String word : words) {
+					addCleanWord(word, messageType);
+				}
+			}
+		});
+		journal = recovering;
+		checkpoint();
+		System.out.println("Recovered " + (nMessagesRegular + nMessagesSpam) + " messages, " + replayed + " of them from the journal, in " + 
+							(System.currentTimeMillis() - start) + " ms");
+	}
+
+	///the directories of regular and spam messages in a training or test directory, found by name as in listDirs
+	private static java.nio.file.Path[] classDirs(File dir_location)
+	throws IOException
+	{
+		java.nio.file.Path[] dirs = new java.nio.file.Path[2];
+		java.nio.file.DirectoryStream<java.nio.file.Path> stream = java.nio.file.Files.newDirectoryStream(dir_location.toPath());
+		for(java.nio.file.Path p : stream) {
+			if(p.getFileName().toString().endsWith("regular")) {
+				dirs[0] = p;
+			} else if(p.getFileName().toString().endsWith("spam")) {
+				dirs[1] = p;
+			}
+		}
+		stream.close();
+		if(dirs[0] == null || dirs[1] == null) {
+			System.out.println( "- Error: " + dir_location + " should contain a folder named regular and a folder named spam\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		return dirs;
+	}
+
+	///read the training messages with many reads in flight, tokenized on a pool of threads; the counts are
+	///added here, on the calling thread, in the order the messages finish
+	private static void readMessagesConcurrently(File dir_location)
+	throws IOException
+	{
+		long start = System.currentTimeMillis();
+		ConcurrentMessageReader reader = new ConcurrentMessageReader(ioConcurrency, Runtime.getRuntime().availableProcessors());
+		reader.start(classDirs(dir_location), new int[] {0, 1});
+		try {
+			ConcurrentMessageReader.Message message;
+			while((message = reader.take()) != null) {
+				MessageType type = message.type == 0 ? MessageType.NORMAL : MessageType.SPAM;
+				if(type == MessageType.NORMAL) {
+					nMessagesRegular++;
+				} else {
+					nMessagesSpam++;
+				}
+				if(trainingIndex != null) {
+					indexedMessages.put(message.path.toString(), trainingIndex.startMessage(message.type));
+				}
+				if(shingles != null) {
+					shingles.learn(message.bytes, 0, message.bytes.length, message.type);
+				}
+				for(String word : message.words) {
+					addCleanWord(word, type);
+				}
+				if(trainingIndex != null) {
+					trainingIndex.endMessage();
+				}
+			}
+		} finally {
+			reader.close();								///its threads would keep the JVM alive after a failed read
+		}
+		System.out.println("Read " + (nMessagesRegular + nMessagesSpam) + " messages with " + ioConcurrency + " reads in flight" + 
+							(reader.usesVirtualThreads() ? " on virtual threads" : "") + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	///score the test messages with many reads in flight; returns the log-odds of the regular and of the
+	///spam messages, in the order they finished
+	private static double[][] scoreConcurrently(File dir_location)
+	throws IOException
+	{
+		ConcurrentMessageReader reader = new ConcurrentMessageReader(ioConcurrency, 0);
+		reader.start(classDirs(dir_location), new int[] {0, 1});
+		ClassifyScratch scratch = classifyScratch.get();
+		double[][] scores = {new double[16], new double[16]};
+		int[] n = new int[2];
+		try {
+			ConcurrentMessageReader.Message message;
+			while((message = reader.take()) != null) {
+				int c = message.type;
+				if(n[c] == scores[c].length) {
+					scores[c] = Arrays.copyOf(scores[c], n[c] * 2);
+				}
+				scores[c][n[c]++] = scoreMessage(message.bytes, message.bytes.length, scratch);
+			}
+		} finally {
+			reader.close();
+		}
+		return new double[][] {Arrays.copyOf(scores[0], n[0]), Arrays.copyOf(scores[1], n[1])};
+	}
+
+	///remove a training message from the counts again, using the forward index of the training index
+	private static void unlearn(File message) {
+		Integer id = indexedMessages.remove(message.getPath());
+		if(id == null) {
+			System.out.println( "- Error: " + message + " is not a training message\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		int type = trainingIndex.type(id);
+		if(type == 0) {
+			nMessagesRegular--;
+		} else {
+			nMessagesSpam--;
+		}
+		int[] tokens = trainingIndex.tokens(id);
+		int[] counts = trainingIndex.counts(id);
+		for(int k = 0; k < tokens.length; k++) {
+			String word = indexedWords.get(tokens[k]);
+			Multiple_Counter counter = vocab.get(word);
+			if(type == 0) {
+				counter.counter_regular -= counts[k];
+			} else {
+				counter.counter_spam -= counts[k];
+			}
+			if(counter.counter_regular + counter.counter_spam == 0) {
+				vocab.remove(word);
+			}
+		}
+		trainingIndex.forget(id);
+	}
+
+	///print the size of the training index and the words that say most about the class of a message
+	private static void printIndexReport() {
+		System.out.println("Index: " + trainingIndex.messages(0) + " regular and " + trainingIndex.messages(1) + 
+							" spam messages, " + trainingIndex.postings() + " postings in " + trainingIndex.postingsBytes() + " bytes");
+		for(int t : trainingIndex.selectFeatures(10)) {
+			System.out.println("Feature: " + indexedWords.get(t) + " | mutual information: " + trainingIndex.mutualInformation(t) + 
+								" in regular messages: " + trainingIndex.documentFrequency(t, 0) + 
+								" in spam messages: " + trainingIndex.documentFrequency(t, 1));
+		}
+	}
+
+	///read the messages of both classes in order of their date, dropping the counts of epochs that leave the window
+	private static void readMessagesInTimeOrder()
+	throws IOException
+	{
+		final int n = listing_regular.length + listing_spam.length;
+		final long[] times = new long[n];
+		Integer[] order = new Integer[n];
+		long latest = 0;
+		for(int i = 0; i < n; i++) {
+			times[i] = RollingWindow.messageTime(i < listing_regular.length ? listing_regular[i] : listing_spam[i - listing_regular.length]);
+			latest = Math.max(latest, times[i]);
+			order[i] = i;
+		}
+		///messages without a date are counted as the most recent ones
+		for(int i = 0; i < n; i++) {
+			if(times[i] == Long.MIN_VALUE) {
+				times[i] = latest;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(times[a], times[b]);
+			}
+		});
+
+		for(int i : order) {
+			for(RollingWindow.Expired expired : window.advanceTo(Math.floorDiv(times[i], epochMillis))) {
+				expire(expired);
+			}
+			if(i < listing_regular.length) {
+				window.addMessage(0);
+				readMessage(listing_regular[i], MessageType.NORMAL);
+			} else {
+				window.addMessage(1);
+				readMessage(listing_spam[i - listing_regular.length], MessageType.SPAM);
+			}
+		}
+	}
+
+	///read a random sample of the training messages: per class a reservoir with that class's share of the
+	///sample size, filled in one pass over the listing. The priors use the true numbers of messages.
+	private static void readSample()
+	throws IOException
+	{
+		long start = System.currentTimeMillis();
+		Random random = new Random(1);
+		double total = listing_regular.length + listing_spam.length;
+		halfCounts = new HashMap<String, int[]>();
+		for(MessageType type : new MessageType[] {MessageType.NORMAL, MessageType.SPAM}) {
+			File[] listing = type == MessageType.NORMAL ? listing_regular : listing_spam;
+			int capacity = (int)Math.max(1, Math.round((double)sampleSize * listing.length / total));
+			ReservoirSampler<File> sampler = new ReservoirSampler<File>(capacity, random);
+			for(File message : listing) {
+				sampler.add(message);
+			}
+			File[] sample = sampler.items().toArray(new File[0]);
+			Arrays.sort(sample);									///read in directory order
+			for(File message : sample) {
+				inFirstHalf = random.nextBoolean();
+				readMessage(message, type);
+			}
+		}
+		inFirstHalf = false;
+		sampledFraction[0] = nMessagesRegular / Math.max(1.0, listing_regular.length);
+		sampledFraction[1] = nMessagesSpam / Math.max(1.0, listing_spam.length);
+		System.out.println("Sample: " + nMessagesRegular + " of " + listing_regular.length + " regular and " + nMessagesSpam + " of " + 
+							listing_spam.length + " spam messages read in " + (System.currentTimeMillis() - start) + " ms");
+		nMessagesRegular = listing_regular.length;
+		nMessagesSpam = listing_spam.length;
+	}
+
+	///estimate how far the word probabilities of the sample are from those of the whole corpus, from the
+	///difference between the two random halves of the sample: a half has twice the variance of the whole
+	///sample, so the halves differ by about twice the error of the sample; the error shrinks with the finite
+	///population correction as the sample covers more of the corpus
+	private static void printSamplingError() {
+		long[] nWords = new long[2];
+		long[] nWordsHalf = new long[2];
+		for(Map.Entry<String, Multiple_Counter> e : vocab.entrySet()) {
+			nWords[0] += e.getValue().counter_regular;
+			nWords[1] += e.getValue().counter_spam;
+			int[] half = halfCounts.get(e.getKey());
+			if(half != null) {
+				nWordsHalf[0] += half[0];
+				nWordsHalf[1] += half[1];
+			}
+		}
+		double[] error = new double[2];
+		double[] weight = new double[2];
+		for(Map.Entry<String, Multiple_Counter> e : vocab.entrySet()) {
+			int[] half = halfCounts.get(e.getKey());
+			for(int c = 0; c < 2; c++) {
+				int count = c == 0 ? e.getValue().counter_regular : e.getValue().counter_spam;
+				int a = half == null ? 0 : half[c];
+				if(count < 5 || a == 0 || a == count) {		///rare words say more about the noise than the sample
+					continue;
+				}
+				double difference = Math.log((double)a / nWordsHalf[c]) - Math.log((double)(count - a) / (nWords[c] - nWordsHalf[c]));
+				error[c] += count * Math.abs(difference) / 2 * Math.sqrt(1 - sampledFraction[c]);
+				weight[c] += count;
+			}
+		}
+		System.out.println("Sampling error: estimated mean absolute error of log P(word|regular) " + error[0] / Math.max(1, weight[0]) + 
+							", of log P(word|spam) " + error[1] / Math.max(1, weight[1]) + " (words seen at least 5 times, weighted by count)");
+	}
+
+	///subtract the counts of an epoch that left the window, dropping words that are no longer seen
+	private static void expire(RollingWindow.Expired expired) {
+		nMessagesRegular -= expired.messagesRegular;
+		nMessagesSpam -= expired.messagesSpam;
+		for(Map.Entry<String, int[]> e : expired.counts.entrySet()) {
+			Multiple_Counter counter = vocab.get(e.getKey());
+			counter.counter_regular -= e.getValue()[0];
+			counter.counter_spam -= e.getValue()[1];
+			if(counter.counter_regular + counter.counter_spam == 0) {
+				vocab.remove(e.getKey());
+			}
+		}
+	}
+
 	/// test the classifier 
     private static void testClassifier()
     throws IOException
@@ -200,6 +724,12 @@ public class Bayespam
 
 		boolean testingSpam;
 
+		///the log-odds of every test message
+		ScoreStore scores = new ScoreStore();
+
+		///with concurrent reading the messages come from the test directory straight away, not from listings
+		double[][] streamedScores = ioConcurrency > 0 ? scoreConcurrently(testDirectory) : null;
+
 		///seperately test the classifier on regular messages and on spam messages
 		for (int i = 0; i<2; i++) {
 			if(i == 0) {
@@ -210,9 +740,25 @@ public class Bayespam
 				messages = listing_spam;
 				testingSpam = true;
 			}
+			///in batch or concurrent mode all messages are scored in one go first
+			double[] batchScores = null;
+			if(streamedScores != null) {
+				batchScores = streamedScores[i];
+			} else if(batchScorer != null) {
+				long start = System.nanoTime();
+				BatchScorer.Matrix matrix = batchScorer.toMatrix(messages);
+				long built = System.nanoTime();
+				batchScores = batchScorer.score(matrix);
+				System.out.println("Batch: " + matrix.rows() + " messages, " + matrix.nonZeros() + " tokens, matrix built in " + 
+									(built - start) / 1000 + " us, scored in " + (System.nanoTime() - built) / 1000 + " us");
+			}
+
 			///Goes through the list of messages and classifies each as spam or regular
-			for(int j = 0; j< messages.length; j++) {
-				boolean iAmSpam = isSpam(messages[j]);
+			int nMessages = batchScores != null ? batchScores.length : messages.length;
+			for(int j = 0; j< nMessages; j++) {
+				double logOdds = batchScores != null ? batchScores[j] : scoreMessage(messages[j]);
+				scores.add(logOdds, testingSpam);				///kept for the threshold analysis
+				boolean iAmSpam = logOdds >= 0;
 				if(iAmSpam) {
 					if(testingSpam) {
 						correctSpam += 1;
@@ -240,60 +786,353 @@ public class Bayespam
 		System.out.print("Overal Accuracy: ");
 		double accuracy = (double)(correctRegular + correctSpam) / (correctRegular + correctSpam + incorrectRegular + incorrectSpam);
 		System.out.println(accuracy);
+
+		if(rocTarget >= 0) {
+			printRoc(scores);
+		}
+		if(compareQuantized) {
+			compareQuantized();
+		}
+		if(bloomFilter != null) {
+			System.out.println("Bloom filter: " + bloomRejections + " of " + bloomLookups + " token lookups rejected");
+		}
+		if(verdictCache != null) {
+			System.out.println("Verdict cache: " + verdictCache.hits() + " hits, " + verdictCache.misses() + " misses, " + 
+								verdictCache.size() + " bodies cached");
+		}
+		if(nearDuplicates != null) {
+			System.out.println("Near-duplicate index: " + nearDuplicates.queries() + " lookups, " + 
+								nearDuplicates.resolvedFraction() + " resolved without scoring");
+		}
     }
 
+	///score the test messages with the full-precision and the quantized model and report how far they differ;
+	///a separate pass, so the scoring above only reads the quantized table
+	private static void compareQuantized()
+	throws IOException
+	{
+		MessageClassifier full = new MessageClassifier(compiledModel, logPriorRegular, logPriorSpam, alpha, fieldVocabs != null);
+		MessageClassifier quantized = new MessageClassifier(quantizedModel, logPriorRegular, logPriorSpam, alpha, fieldVocabs != null);
+		ClassifyScratch scratch = classifyScratch.get();
+		int messages = 0;
+		int agreements = 0;
+		double maxError = 0;
+		double totalError = 0;
+		for(File[] listing : new File[][] {listing_regular, listing_spam}) {
+			for(File message : listing) {
+				int length = scratch.read(message);
+				double exact = full.classify(scratch.buffer, 0, length, scratch).logOdds;
+				double approximate = quantized.classify(scratch.buffer, 0, length, scratch).logOdds;
+				double error = Math.abs(approximate - exact);
+				messages++;
+				if((approximate >= 0) == (exact >= 0)) {
+					agreements++;
+				}
+				maxError = Math.max(maxError, error);
+				totalError += error;
+			}
+		}
+		System.out.println("Quantized model accuracy report: " + agreements + " of " + messages + 
+							" verdicts equal to full precision, log-odds error mean " + totalError / Math.max(1, messages) + 
+							" max " + maxError);
+	}
+
+	///build the overlay of one user on the global counts, from the messages of the user or a saved overlay
+	private static void loadUserOverlay()
+	throws IOException
+	{
+		long[] hashes = new long[nextWordId];
+		int[] countRegular = new int[nextWordId];
+		int[] countSpam = new int[nextWordId];
+		for(Map.Entry<String, Multiple_Counter> e : vocab.entrySet()) {
+			Multiple_Counter counter = e.getValue();
+			hashes[counter.id] = TokenHash.hash(e.getKey());		///a saved overlay names its words by hash, ids differ per run
+			countRegular[counter.id] = counter.counter_regular;
+			countSpam[counter.id] = counter.counter_spam;
+		}
+		UserOverlay.Base base = new UserOverlay.Base(hashes, countRegular, countSpam, nMessagesRegular, nMessagesSpam, epsilon);
+
+		if(overlayFile.isFile()) {
+			try {
+				userOverlay = UserOverlay.read(overlayFile, base);
+			} catch(IOException e) {
+				System.out.println( "- Error: cannot read overlay " + overlayFile + ": " + e.getMessage() + "\n" );
+				Runtime.getRuntime().exit(0);
+			}
+		} else {
+			userOverlay = new UserOverlay(base);
+			File[] trainRegular = listing_regular;
+			File[] trainSpam = listing_spam;
+			listDirs(overlayFile);
+			for(int i = 0; i < 2; i++) {
+				for(File message : i == 0 ? listing_regular : listing_spam) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(message)));
+					String line;
+					while((line = in.readLine()) != null) {
+						StringTokenizer st = new StringTokenizer(line);
+						while(st.hasMoreTokens()) {
+							Multiple_Counter counter = vocab.get(cleanWord(st.nextToken()));
+							if(counter != null) {			///words outside the global vocabulary are ignored
+								userOverlay.learn(counter.id, i, 1);
+							}
+						}
+					}
+					in.close();
+					userOverlay.learnMessage(i, 1);
+				}
+			}
+			listing_regular = trainRegular;
+			listing_spam = trainSpam;
+		}
+		if(saveOverlayFile != null) {
+			userOverlay.write(saveOverlayFile);
+		}
+		System.out.println("Overlay: " + userOverlay.size() + " adjusted words in " + userOverlay.sizeBytes() + " bytes" + 
+							(userOverlay.unknownTokens() > 0 ? ", " + userOverlay.unknownTokens() + " saved words not in this vocabulary" : ""));
+	}
+
+	///print the ROC curve of the stored scores, its area and the threshold for the target false positive rate
+	private static void printRoc(ScoreStore scores) {
+		ArrayList<ScoreStore.Point> roc = scores.roc();
+		for(ScoreStore.Point p : roc) {
+			System.out.println("ROC: " + p);
+		}
+		System.out.println("AUC: " + ScoreStore.auc(roc));
+		System.out.println("Best for false positive rate " + rocTarget + ": " + ScoreStore.bestForFalsePositiveRate(roc, rocTarget));
+	}
+
 	///Determine if a message is spam
 	private static boolean isSpam(File message) 
 	throws IOException
 	{
-		FileInputStream i_s = new FileInputStream( message );
-        BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-        String line;
-        String word;
+		return scoreMessage(message) >= 0;
+	}
 
-		///create a local vocabulary for words contained in the message
-		HashSet<String> messageVocab = new HashSet<String>();
-        
+	///Compute the log-odds (log P(spam|message) - log P(regular|message)) of a message
+	private static double scoreMessage(File message)
+	throws IOException
+	{
+		ClassifyScratch scratch = classifyScratch.get();
+		if(mapMessages) {
+			java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(message.toPath());
+			java.nio.MappedByteBuffer bytes = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			channel.close();								///the mapping stays valid until the buffer is collected
+			return messageClassifier.classify(bytes, scratch).logOdds;
+		}
+
+		///read the message into the reusable buffer of this thread
+		return scoreMessage(scratch.buffer, scratch.read(message), scratch);
+	}
+
+	///score the first length bytes of a message
+	private static double scoreMessage(byte[] bytes, int length, ClassifyScratch scratch)
+	throws IOException
+	{
+		///look the body up in the verdict cache before tokenizing
+		long key = 0;
+		if(verdictCache != null) {
+			key = VerdictCache.bodyHash(bytes, length);
+			Double cached = verdictCache.get(key, modelVersion);
+			if(cached != null) {
+				return cached;
+			}
+		}
+
+		///the compiled model can be used without building strings, unless an option needs the words themselves
+		double logOdds;
+		if(messageClassifier != null) {
+			logOdds = messageClassifier.classify(bytes, 0, length, scratch).logOdds;
+		} else {
+			logOdds = scoreWords(bytes, length, scratch);
+		}
+		if(shingles != null) {
+			logOdds += shingles.logOdds(bytes, 0, length) / shingles.length();
+		}
+
+		if(verdictCache != null) {
+			verdictCache.put(key, modelVersion, logOdds);
+		}
+		return logOdds;
+	}
+
+	///split the first length bytes of a message into the cleaned words kept (scratch.tokens) and their header
+	///fields (scratch.tokenFields, with -fields). The message is decoded into the scratch and split in place,
+	///into lines as by BufferedReader.readLine and into words as by StringTokenizer, so the only objects
+	///created are the Strings of the words kept.
+	private static void tokenize(byte[] bytes, int length, ClassifyScratch scratch) {
+		java.nio.CharBuffer text = scratch.decode(bytes, length);
+		char[] chars = text.array();
+		int end = text.limit();
+		StringBuilder word = scratch.word;
+
+		///collect the words of the message, duplicates are skipped when scoring
+		ArrayList<String> messageVocab = scratch.tokens;
+		messageVocab.clear();
+		int field = HeaderFields.BODY;
+		scratch.headerFields.startMessage();
 
 		///read message words into local vocabulary
-        while ((line = in.readLine()) != null)                      // read a line
-        {
-            StringTokenizer st = new StringTokenizer(line);         // parse it into words
-    
-            while (st.hasMoreTokens())                  // while there are still words left..
-            {
-                word = cleanWord(st.nextToken());
-        		if(word.length() >= alpha) {
-        			if ( messageVocab.contains(word) == false){          // if word doesn't yet exist in the vocab
-        		    	messageVocab.add(word);                  		// add word to vocab
-        			}
-        		}
-        	}
-        }
+		for(int start = 0; start < end; ) {
+			int lineEnd = start;
+			while(lineEnd < end && chars[lineEnd] != '\n' && chars[lineEnd] != '\r') {
+				lineEnd++;
+			}
+			if(fieldVocabs != null) {
+				field = scratch.headerFields.line(text, start, lineEnd);
+			}
+			int i = start;
+			while(i < lineEnd) {
+				while(i < lineEnd && (chars[i] == ' ' || chars[i] == '\t' || chars[i] == '\f')) {
+					i++;
+				}
+				int wordStart = i;
+				while(i < lineEnd && chars[i] != ' ' && chars[i] != '\t' && chars[i] != '\f') {
+					i++;
+				}
+				if(i == wordStart) {
+					break;
+				}
+				word.setLength(0);
+				cleanWord(text, wordStart, i, word);
+				if(word.length() >= alpha) {
+					if(messageVocab.size() == scratch.tokenFields.length) {
+						scratch.tokenFields = Arrays.copyOf(scratch.tokenFields, messageVocab.size() * 2);
+					}
+					scratch.tokenFields[messageVocab.size()] = field;
+					messageVocab.add(word.toString());
+				}
+			}
+			if(lineEnd + 1 < end && chars[lineEnd] == '\r' && chars[lineEnd + 1] == '\n') {
+				lineEnd++;								///a \r\n terminator ends one line
+			}
+			start = lineEnd + 1;
+		}
+	}
 
-		in.close();
+	///score the words of a message, for the vocabulary and the models looked up by word
+	private static double scoreWords(byte[] bytes, int length, ClassifyScratch scratch)
+	throws IOException
+	{
+		tokenize(bytes, length, scratch);
+		ArrayList<String> messageVocab = scratch.tokens;
 
-		///set the initial probabilites to the priors
-		double log_regular = logPriorRegular;
-		double log_spam = logPriorSpam;
+		///reuse the verdict of a confidently classified near-duplicate
+		long[] signature = null;
+		if(nearDuplicates != null) {
+			signature = NearDuplicateIndex.signature(messageVocab);
+			Double reused = nearDuplicates.lookup(signature, modelVersion);
+			if(reused != null) {
+				return reused;
+			}
+		}
 
-		///for all words in the message, use their conditional probabilities to update the probability of regular/spam
-		for(String w : messageVocab) {
+		///set the initial probabilites to the priors
+		double log_regular = userOverlay != null ? userOverlay.logPriorRegular() : logPriorRegular;
+		double log_spam = userOverlay != null ? userOverlay.logPriorSpam() : logPriorSpam;
 
-        	if ( vocab.containsKey(w) ){                  // if word exists already in the vocabulary..
-				Multiple_Counter counter = new Multiple_Counter();
-            	counter = vocab.get(w);                  // get the counter from the hashtable				
+		///for all words in the message, use their conditional probabilities to update the probability of regular/spam;
+		///every word counts once, words already seen in this message are marked by their id
+		scratch.nextMessage();
+		scratch.ensureCapacity(quantizedModel != null ? quantizedModel.size() : compiledModel != null ? compiledModel.size() : 
+							   offHeapVocab != null ? offHeapVocab.size() : nextWordId);
+		long quantizedSum = 0;
+		for(int t = 0; t < messageVocab.size(); t++) {
+			String w = messageVocab.get(t);
 
+			///most tokens of a message are not in the vocabulary, the filter rejects them with one cache line read
+			if(bloomFilter != null) {
+				bloomLookups++;
+				if(!bloomFilter.mightContain(TokenHash.hash(w))) {
+					bloomRejections++;
+					continue;
+				}
+			}
+			if(quantizedModel != null) {				///one small value per token, summed as integers
+				int slot = quantizedModel.lookup(fieldVocabs != null ? HeaderFields.hash(scratch.tokenFields[t], w) : TokenHash.hash(w));
+				if(slot >= 0 && scratch.markSeen(slot)) {
+					quantizedSum += quantizedModel.quantizedLogOdds(slot);
+				}
+				continue;
+			}
+			if(compiledModel != null) {
+				int slot = fieldVocabs != null ? compiledModel.lookup(HeaderFields.hash(scratch.tokenFields[t], w)) : compiledModel.lookup(w);
+				if(slot >= 0 && scratch.markSeen(slot)) {
+					log_regular += compiledModel.logProbGivenRegular(slot);
+					log_spam += compiledModel.logProbGivenSpam(slot);
+				}
+				continue;
+			}
+			if(offHeapVocab != null) {
+				int id = offHeapVocab.find(w);
+				if(id >= 0 && scratch.markSeen(id)) {
+					log_regular += offHeapVocab.logProbGivenRegular(id);
+					log_spam += offHeapVocab.logProbGivenSpam(id);
+				}
+				continue;
+			}
+			Multiple_Counter counter = fieldVocabs != null ? fieldVocabs.get(scratch.tokenFields[t]).get(w) : vocab.get(w);	// get the counter from the hashtable
+        	if ( counter != null && scratch.markSeen(counter.id) ){                  // if word exists in the vocabulary..
 				///update probabilities with new evidence
-				log_regular += counter.logProbGivenRegular;
-				log_spam += counter.logProbGivenSpam;
+				if(userOverlay != null) {
+					log_regular += userOverlay.logProbGivenRegular(counter.id);
+					log_spam += userOverlay.logProbGivenSpam(counter.id);
+				} else {
+					log_regular += counter.logProbGivenRegular;
+					log_spam += counter.logProbGivenSpam;
+				}
         	}
 		}
 
-		if(log_spam >= log_regular) {
-			return true;
+		double logOdds = quantizedModel != null ? logPriorSpam - logPriorRegular + quantizedSum * quantizedModel.scale() : log_spam - log_regular;
+
+		if(nearDuplicates != null) {
+			nearDuplicates.add(signature, modelVersion, logOdds);
 		}
-		return false;
+		return logOdds;
+	}
+
+	///write the vocabulary counts to a count table file
+	private static void saveCounts(File file)
+	throws IOException
+	{
+		int n = offHeapVocab != null ? offHeapVocab.size() : vocab.size();
+		String[] words = new String[n];
+		int[][] counts = new int[n][];
+		if(offHeapVocab != null) {
+			for(int id = 0; id < n; id++) {
+				words[id] = offHeapVocab.word(id);
+				counts[id] = new int[] {offHeapVocab.getCount(id, 0), offHeapVocab.getCount(id, 1)};
+			}
+		} else {
+			int i = 0;
+			for(Map.Entry<String, Multiple_Counter> e : vocab.entrySet()) {
+				words[i] = e.getKey();
+				counts[i++] = new int[] {e.getValue().counter_regular, e.getValue().counter_spam};
+			}
+		}
+		CountTable.write(file, nMessagesRegular, nMessagesSpam, words, counts);
+	}
+
+	///fill the vocabulary from a count table file instead of reading messages
+	private static void loadCounts(File file)
+	throws IOException
+	{
+		CountTable.Reader reader = new CountTable.Reader(file);
+		nMessagesRegular = reader.messagesRegular();
+		nMessagesSpam = reader.messagesSpam();
+		while(reader.next()) {
+			if(offHeapVocab != null) {
+				offHeapVocab.add(reader.token(), 0, reader.countRegular());
+				offHeapVocab.add(reader.token(), 1, reader.countSpam());
+			} else {
+				Multiple_Counter counter = new Multiple_Counter();
+				counter.id = nextWordId++;
+				counter.counter_regular = reader.countRegular();
+				counter.counter_spam = reader.countSpam();
+				vocab.put(reader.token(), counter);
+			}
+		}
+		reader.close();
 	}
 
 	///calculate class conditional probabilities for all words in vocabulary
@@ -302,41 +1141,149 @@ public class Bayespam
 		int nWordsRegular = 0;
 		int nWordsSpam = 0;
 
-		///count up the total word counts in Regular and Spam
-        for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
-        {   
-            String word;
-            
-            word = e.nextElement();
-            counter  = vocab.get(word);
+		modelVersion++;
+		if(offHeapVocab != null) {
+			computeOffHeapCCProbs();
+			return;
+		}
 
-			nWordsRegular += counter.counter_regular;
-			nWordsSpam += counter.counter_spam;
-        }
+		///with fields, the words of all fields share the totals: every token is one draw from its class
+		List<Hashtable<String, Multiple_Counter>> vocabs = vocabularies();
+
+		///count up the total word counts in Regular and Spam
+		for (Hashtable<String, Multiple_Counter> vocab : vocabs) {
+			for (Multiple_Counter c : vocab.values()) {
+				nWordsRegular += c.counter_regular;
+				nWordsSpam += c.counter_spam;
+			}
+		}
 
 		///give each word its conditional probabilities
-		for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
-        {   
-            String word;
-            
-            word = e.nextElement();
-            counter  = vocab.get(word);
+		for (Hashtable<String, Multiple_Counter> vocab : vocabs) {
+			for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
+			{   
+				String word;
+
+				word = e.nextElement();
+				counter  = vocab.get(word);
 
-			double probGivenRegular = (double)counter.counter_regular / nWordsRegular;
-			double probGivenSpam = (double)counter.counter_spam / nWordsSpam;
+				double probGivenRegular = (double)counter.counter_regular / nWordsRegular;
+				double probGivenSpam = (double)counter.counter_spam / nWordsSpam;
+
+				///Set zero probabilities to default minimum probability
+				if(probGivenRegular == 0) {
+					probGivenRegular = epsilon / (nWordsRegular + nWordsSpam);
+				}
+				if(probGivenSpam == 0) {
+					probGivenSpam = epsilon / (nWordsRegular + nWordsSpam);
+				}
+
+				///convert probabilities to log probabilities to avoid underflow
+				counter.logProbGivenRegular = Math.log(probGivenRegular);
+				counter.logProbGivenSpam = Math.log(probGivenSpam);
+			}
+		}
+	}
+
+	///the in-memory vocabularies: one per field with -fields, otherwise vocab alone
+	private static List<Hashtable<String, Multiple_Counter>> vocabularies() {
+		return fieldVocabs != null ? fieldVocabs : Collections.singletonList(vocab);
+	}
+
+	///one vocabulary per header field, indexed by field, the body one being vocab
+	private static ArrayList<Hashtable<String, Multiple_Counter>> newFieldVocabularies() {
+		ArrayList<Hashtable<String, Multiple_Counter>> vocabs = new ArrayList<Hashtable<String, Multiple_Counter>>(HeaderFields.COUNT);
+		for(int f = 0; f < HeaderFields.COUNT; f++) {
+			vocabs.add(f == HeaderFields.BODY ? vocab : new Hashtable<String, Multiple_Counter>());
+		}
+		return vocabs;
+	}
+
+	///same as computeCCProbs, for the off-heap vocabulary
+	private static void computeOffHeapCCProbs() {
+		long nWordsRegular = 0;
+		long nWordsSpam = 0;
+
+		for(int id = 0; id < offHeapVocab.size(); id++) {
+			nWordsRegular += offHeapVocab.getCount(id, 0);
+			nWordsSpam += offHeapVocab.getCount(id, 1);
+		}
+
+		double minimum = epsilon / (nWordsRegular + nWordsSpam);
+		for(int id = 0; id < offHeapVocab.size(); id++) {
+			double probGivenRegular = (double)offHeapVocab.getCount(id, 0) / nWordsRegular;
+			double probGivenSpam = (double)offHeapVocab.getCount(id, 1) / nWordsSpam;
 
 			///Set zero probabilities to default minimum probability
 			if(probGivenRegular == 0) {
-				probGivenRegular = epsilon / (nWordsRegular + nWordsSpam);
+				probGivenRegular = minimum;
 			}
 			if(probGivenSpam == 0) {
-				probGivenSpam = epsilon / (nWordsRegular + nWordsSpam);
+				probGivenSpam = minimum;
 			}
+			offHeapVocab.setLogProbs(id, Math.log(probGivenRegular), Math.log(probGivenSpam));
+		}
+	}
 
-			///convert probabilities to log probabilities to avoid underflow
-			counter.logProbGivenRegular = Math.log(probGivenRegular);
-			counter.logProbGivenSpam = Math.log(probGivenSpam);
-        }
+	///build the Bloom filter of all words in the trained vocabulary
+	private static void buildBloomFilter() {
+		int n = offHeapVocab != null ? offHeapVocab.size() : vocab.size();
+		bloomFilter = new BlockedBloomFilter(n, bloomBitsPerKey);
+		if(offHeapVocab != null) {
+			for(int id = 0; id < n; id++) {
+				bloomFilter.add(TokenHash.hash(offHeapVocab.word(id)));
+			}
+		} else {
+			for(String word : vocab.keySet()) {
+				bloomFilter.add(TokenHash.hash(word));
+			}
+		}
+		System.out.println("Bloom filter: " + bloomFilter.sizeBytes() + " bytes for " + n + " words");
+	}
+
+	///build the read-only scoring model from the trained vocabulary
+	private static void compileModel() {
+		CompiledModel.Builder builder = new CompiledModel.Builder();
+		if(offHeapVocab != null) {
+			for(int id = 0; id < offHeapVocab.size(); id++) {
+				builder.add(offHeapVocab.word(id), offHeapVocab.logProbGivenRegular(id), offHeapVocab.logProbGivenSpam(id));
+			}
+		} else if(fieldVocabs != null) {
+			///the field is part of the token hash, so equal words of different fields get their own slots
+			for(int f = 0; f < HeaderFields.COUNT; f++) {
+				for(Map.Entry<String, Multiple_Counter> e : fieldVocabs.get(f).entrySet()) {
+					builder.add(HeaderFields.hash(f, e.getKey()), e.getValue().logProbGivenRegular, e.getValue().logProbGivenSpam);
+				}
+			}
+		} else {
+			for(Map.Entry<String, Multiple_Counter> e : vocab.entrySet()) {
+				builder.add(e.getKey(), e.getValue().logProbGivenRegular, e.getValue().logProbGivenSpam);
+			}
+		}
+		compiledModel = builder.build();
+		if(quantizeBits > 0) {
+			quantizedModel = compiledModel.quantize(quantizeBits);
+		}
+	}
+
+	///train on a directory, or on a saved count table if countsFile is not null, and compile the model,
+	///without printing anything; returns a classifier for messages in memory (used by StreamClassifier)
+	static MessageClassifier trainCompiledClassifier(File trainDir, File countsFile)
+	throws IOException
+	{
+		if(countsFile != null) {
+			loadCounts(countsFile);
+		} else {
+			listDirs(trainDir);
+			readMessages(MessageType.NORMAL);
+			readMessages(MessageType.SPAM);
+		}
+		double nMessagesTotal = nMessagesRegular + nMessagesSpam;
+		logPriorRegular = Math.log(nMessagesRegular / nMessagesTotal);
+		logPriorSpam = Math.log(nMessagesSpam / nMessagesTotal);
+		computeCCProbs();
+		compileModel();
+		return new MessageClassifier(compiledModel, logPriorRegular, logPriorSpam, alpha);
 	}
    
     public static void main(String[] args)
@@ -352,19 +1299,212 @@ public class Bayespam
             Runtime.getRuntime().exit(0);
         }
 
-        // Initialize the regular and spam lists
-        listDirs(dir_location_train);
+		///optional arguments after the two directories
+		for(int i = 2; i < args.length; i++) {
+			if(args[i].equals("-offheap")) {
+				offHeapVocab = new OffHeapVocab();			///keep the vocabulary outside the java heap
+			} else if(args[i].equals("-shard") && i + 1 < args.length) {
+				String[] shard = args[++i].split("/");		///train on shard i of N
+				shardIndex = Integer.parseInt(shard[0]);
+				shardCount = Integer.parseInt(shard[1]);
+			} else if(args[i].equals("-savecounts") && i + 1 < args.length) {
+				saveCountsFile = new File(args[++i]);		///only write the counts, for ShardedTraining
+			} else if(args[i].equals("-counts") && i + 1 < args.length) {
+				loadCountsFile = new File(args[++i]);		///train from a (merged) count table
+			} else if(args[i].equals("-window") && i + 1 < args.length) {
+				window = new RollingWindow(Integer.parseInt(args[++i]));	///keep the counts of the last N epochs
+			} else if(args[i].equals("-epochhours") && i + 1 < args.length) {
+				epochMillis = Long.parseLong(args[++i]) * 3600 * 1000;
+			} else if(args[i].equals("-spill") && i + 1 < args.length) {
+				///count in a buffer of at most this many tokens, spilling sorted runs to disk
+				spillDir = java.nio.file.Files.createTempDirectory("bayespam-spill").toFile();
+				spillCounter = new SpillingCounter(Integer.parseInt(args[++i]), spillDir);
+			} else if(args[i].equals("-compile")) {
+				compile = true;								///classify with a minimal perfect hash model
+			} else if(args[i].equals("-quantize") && i + 1 < args.length) {
+				compile = true;								///classify with 8 or 16-bit log-odds per token
+				quantizeBits = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-quantizereport")) {
+				compareQuantized = true;					///compare quantized and full precision scores after testing
+			} else if(args[i].equals("-mmap")) {
+				compile = true;								///classify memory-mapped files without building strings
+				mapMessages = true;
+			} else if(args[i].equals("-bloom") && i + 1 < args.length) {
+				bloomBitsPerKey = Integer.parseInt(args[++i]);	///reject unknown tokens with a Bloom filter first
+			} else if(args[i].equals("-cache") && i + 1 < args.length) {
+				verdictCache = new VerdictCache(Integer.parseInt(args[++i]));	///remember verdicts of this many bodies
+			} else if(args[i].equals("-batch") && i + 1 < args.length) {
+				compile = true;								///score the test set as a sparse matrix with N threads
+				batchThreads = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-roc") && i + 1 < args.length) {
+				rocTarget = Double.parseDouble(args[++i]);	///print the ROC curve and the threshold for this false positive rate
+			} else if(args[i].equals("-overlay") && i + 1 < args.length) {
+				overlayFile = new File(args[++i]);			///score with the personal overlay of one user
+			} else if(args[i].equals("-saveoverlay") && i + 1 < args.length) {
+				saveOverlayFile = new File(args[++i]);
+			} else if(args[i].equals("-sample") && i + 1 < args.length) {
+				sampleSize = Integer.parseInt(args[++i]);	///train on a stratified random sample of this many messages
+			} else if(args[i].equals("-shingles") && i + 1 < args.length) {
+				///add character shingles of this many bytes as features
+				shingles = new ShingleFeatures(Integer.parseInt(args[++i]), shingleBits);
+			} else if(args[i].equals("-concurrent") && i + 1 < args.length) {
+				ioConcurrency = Integer.parseInt(args[++i]);	///read messages with this many reads in flight
+			} else if(args[i].equals("-wal") && i + 1 < args.length) {
+				journalDir = new File(args[++i]);			///keep the training state in a journal in this directory
+			} else if(args[i].equals("-checkpoint") && i + 1 < args.length) {
+				checkpointEvery = Long.parseLong(args[++i]);	///messages between snapshots of the journal
+			} else if(args[i].equals("-index")) {
+				trainingIndex = new InvertedIndex();		///index which training messages contain which words
+			} else if(args[i].equals("-unlearn") && i + 1 < args.length) {
+				trainingIndex = trainingIndex != null ? trainingIndex : new InvertedIndex();
+				unlearnFiles.add(new File(args[++i]));		///remove this training message again after reading
+			} else if(args[i].equals("-fields")) {
+				fieldVocabs = newFieldVocabularies();			///keep subject, sender, other header and body words apart
+			} else if(args[i].equals("-lsh") && i + 1 < args.length) {
+				///remember this many recent messages for near-duplicate detection
+				int capacity = Integer.parseInt(args[++i]);
+				if(capacity <= 0) {
+					System.out.println( "- Error: -lsh needs a positive number of messages, not " + capacity + "\n" );
+					Runtime.getRuntime().exit(0);
+				}
+				nearDuplicates = new NearDuplicateIndex(capacity, lshSimilarity, lshConfidence);
+			} else {
+				System.out.println( "- Error: unknown option " + args[i] + "\n" );
+				Runtime.getRuntime().exit(0);
+			}
+		}
+		if(window != null && (offHeapVocab != null || spillCounter != null || loadCountsFile != null)) {
+			System.out.println( "- Error: -window only works with the in-memory vocabulary\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(trainingIndex != null && (offHeapVocab != null || spillCounter != null || loadCountsFile != null || window != null)) {
+			System.out.println( "- Error: -index and -unlearn only work with the in-memory vocabulary\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(overlayFile != null && (offHeapVocab != null || spillCounter != null || compile || bloomBitsPerKey > 0)) {
+			System.out.println( "- Error: -overlay works with the in-memory vocabulary and the string path only\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(sampleSize > 0 && (offHeapVocab != null || spillCounter != null || loadCountsFile != null || window != null || shardCount > 1)) {
+			System.out.println( "- Error: -sample only works with the in-memory vocabulary\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(shingles != null && (offHeapVocab != null || spillCounter != null || loadCountsFile != null || window != null || 
+								mapMessages || batchThreads > 0)) {
+			System.out.println( "- Error: -shingles needs the training messages and per message scoring\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(ioConcurrency > 0 && (window != null || sampleSize > 0 || shardCount > 1 || mapMessages || batchThreads > 0)) {
+			System.out.println( "- Error: -concurrent cannot be combined with -window, -sample, -shard, -mmap or -batch\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(journalDir != null && (offHeapVocab != null || spillCounter != null || loadCountsFile != null || window != null || 
+								  sampleSize > 0 || trainingIndex != null || shingles != null || ioConcurrency > 0 || shardCount > 1)) {
+			System.out.println( "- Error: -wal only works with plain training on the in-memory vocabulary\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(batchThreads > 0 && (nearDuplicates != null || verdictCache != null || quantizeBits > 0 || bloomBitsPerKey > 0)) {
+			System.out.println( "- Error: -batch scores with the full precision compiled model only\n" );
+			Runtime.getRuntime().exit(0);
+		}
+
+		if(mapMessages && (verdictCache != null || nearDuplicates != null || bloomBitsPerKey > 0)) {
+			System.out.println( "- Error: -mmap scores with the compiled or quantized model only, not with -cache, -lsh or -bloom\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(compareQuantized && (quantizeBits == 0 || ioConcurrency > 0)) {
+			System.out.println( "- Error: -quantizereport needs -quantize and cannot be combined with -concurrent\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		if(fieldVocabs != null && (offHeapVocab != null || spillCounter != null || loadCountsFile != null || saveCountsFile != null || 
+								   window != null || overlayFile != null || sampleSize > 0 || ioConcurrency > 0 || journalDir != null || 
+								   trainingIndex != null || bloomBitsPerKey > 0 || batchThreads > 0)) {
+			System.out.println( "- Error: -fields only works with plain training on the in-memory vocabulary\n" );
+			Runtime.getRuntime().exit(0);
+		}
+
+		if(journalDir != null) {
+			journal = new TrainingJournal(journalDir, journalGroupSize, checkpointEvery);
+		}
+		boolean recovered = journal != null && journal.hasState();
+		if(recovered) {
+			recoverFromJournal();						///continue from the journal instead of training again
+		}
+		if(recovered && journal.complete()) {
+			///the journal holds the complete model
+		} else if(loadCountsFile != null) {
+			loadCounts(loadCountsFile);
+		} else {
+			// Initialize the regular and spam lists (the concurrent reader walks the directories itself)
+			if(ioConcurrency == 0) {
+				listDirs(dir_location_train);
+			}
+			if(recovered && journal.lastInput() != null) {
+				resumeAfter = journal.lastInput();		///the training was cut off, learn the rest of the messages
+				if(!Arrays.asList(listing_regular).contains(new File(resumeAfter)) && 
+				   !Arrays.asList(listing_spam).contains(new File(resumeAfter))) {
+					System.out.println( "- Error: the journal in " + journalDir + " ends after " + resumeAfter + 
+										", which is not a training message; remove the journal to train again\n" );
+					Runtime.getRuntime().exit(0);
+				}
+				System.out.println("Resuming training after " + resumeAfter);
+			}
+
+			// Read the e-mail messages
+			if(window != null) {
+				readMessagesInTimeOrder();
+				System.out.println("Window: " + vocab.size() + " words, " + nMessagesRegular + " regular and " + 
+									nMessagesSpam + " spam messages in the last epochs");
+			} else if(ioConcurrency > 0) {
+				readMessagesConcurrently(dir_location_train);
+			} else if(sampleSize > 0) {
+				readSample();
+				printSamplingError();
+			} else {
+				readMessages(MessageType.NORMAL);
+				readMessages(MessageType.SPAM);
+			}
+		}
+
+		if(trainingIndex != null) {
+			for(File message : unlearnFiles) {
+				unlearn(message);
+			}
+			printIndexReport();
+		}
 
-        // Read the e-mail messages
-        readMessages(MessageType.NORMAL);
-        readMessages(MessageType.SPAM);
+		if(journal != null) {
+			if(!journal.complete()) {
+				journal.trainingComplete();
+				checkpoint();							///everything learned so far is in one snapshot
+			}
+			journal.close();
+		}
+
+		///merge the spill files into the final counts, or straight into the count file of a shard
+		if(spillCounter != null) {
+			File table = saveCountsFile != null ? saveCountsFile : new File(spillDir, "vocab.counts");
+			long tokens = spillCounter.finish(table, 0, nMessagesRegular, nMessagesSpam);
+			System.out.println("Merged " + tokens + " tokens from " + spillCounter.spills() + " spill files");
+			if(saveCountsFile == null) {
+				loadCounts(table);
+				table.delete();
+			}
+			spillDir.delete();
+			if(saveCountsFile != null) {
+				return;
+			}
+		}
+
+		if(saveCountsFile != null) {
+			saveCounts(saveCountsFile);
+			return;
+		}
 
         // Print out the hash table
         printVocab();
 
         ///calculates the prior probabilities
-        double nMessagesRegular = listing_regular.length;
-        double nMessagesSpam = listing_spam.length;
         double nMessagesTotal = nMessagesRegular + nMessagesSpam;
 
         logPriorRegular = Math.log(nMessagesRegular / nMessagesTotal);
@@ -373,6 +1513,37 @@ public class Bayespam
 		///calculate class conditional probabilities
 		computeCCProbs();
 
+		if(shingles != null) {
+			shingles.computeProbabilities(epsilon);
+			System.out.println("Shingles: " + shingles.length() + " bytes, " + shingles.usedBuckets() + " buckets used");
+		}
+		if(overlayFile != null) {
+			loadUserOverlay();
+		}
+		if(compile) {
+			compileModel();
+			System.out.println("Compiled model: " + compiledModel.size() + " tokens, " + 
+								(double)compiledModel.indexBytes() / Math.max(1, compiledModel.size()) + " bytes per token for the index");
+			if(quantizedModel != null) {
+				System.out.println("Quantized model: " + quantizedModel.payloadBytes() + " bytes per token, scale " + quantizedModel.scale());
+				if(!compareQuantized) {
+					compiledModel = null;				///only the quantized table and the shared index stay in memory
+				}
+			}
+		}
+		if(bloomBitsPerKey > 0) {
+			buildBloomFilter();
+		}
+		///options that work on the words as strings keep the classification on the string path
+		if(compile && (mapMessages || (nearDuplicates == null && bloomFilter == null))) {
+			messageClassifier = quantizedModel != null
+					? new MessageClassifier(quantizedModel, logPriorRegular, logPriorSpam, alpha, fieldVocabs != null)
+					: new MessageClassifier(compiledModel, logPriorRegular, logPriorSpam, alpha, fieldVocabs != null);
+		}
+		if(batchThreads > 0) {
+			batchScorer = new BatchScorer(compiledModel, logPriorRegular, logPriorSpam, alpha, batchThreads);
+		}
+
 		/// Location of the testing directory (the path) taken from the cmd line (second arg)
         File dir_location_test = new File( args[1] );
         
@@ -384,10 +1555,17 @@ public class Bayespam
         }
 
 		/// Initialize the regular and spam lists
-        listDirs(dir_location_test);
+        if(ioConcurrency > 0) {
+            testDirectory = dir_location_test;			///read by testClassifier while it walks the directory
+        } else {
+            listDirs(dir_location_test);
+        }
 
 		///classify the test set messages and print the confusion matrix
 		testClassifier();
+		if(batchScorer != null) {
+			batchScorer.shutdown();
+		}
 		
         
         // Now all students must continue from here:
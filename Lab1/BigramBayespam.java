@@ -58,8 +58,31 @@ public class BigramBayespam
     // A hash table for the vocabulary (word searching is very fast in a hash table)
     private static Hashtable <String, Multiple_Counter> vocab = new Hashtable <String, Multiple_Counter> ();
 
+	///optional off-heap vocabulary, used instead of the hash table when the -offheap option is given
+	private static OffHeapVocab offHeapVocab = null;
+
+	///number of training messages per class, counted while reading or loaded with the counts
+	private static long nMessagesRegular = 0;
+	private static long nMessagesSpam = 0;
+
+	///sharded training: only every shardCount-th message starting at shardIndex is read (-shard i/N)
+	private static int shardIndex = 0;
+	private static int shardCount = 1;
+
+	///count table files to write after reading (-savecounts) or to load instead of reading (-counts)
+	private static File saveCountsFile = null;
+	private static File loadCountsFile = null;
+
+	///optional bounded-memory counting with sorted spill files, enabled with -spill <max buffered tokens>
+	private static SpillingCounter spillCounter = null;
+	private static File spillDir = null;
+
 	///remove words from the vocab which occur infrequently
 	private static void simplifyVocab() {
+		if(offHeapVocab != null) {
+			offHeapVocab.retainMinTotal(beta);
+			return;
+		}
 		Multiple_Counter counter = new Multiple_Counter();
 
         for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
@@ -111,10 +134,20 @@ public class BigramBayespam
     
     /// Add a bigram to the vocabulary
     private static void addBigram(String word1, String word2, MessageType type)
+    throws IOException
     {
         Multiple_Counter counter = new Multiple_Counter();
 		String bigram = word1 + "-" + word2;
 
+		if(spillCounter != null) {						///counts go to the spill buffer, the vocabulary is loaded afterwards
+			spillCounter.add(bigram, type.ordinal());
+			return;
+		}
+		if(offHeapVocab != null) {						///the off-heap store keeps its own counters
+			offHeapVocab.add(bigram, type.ordinal());
+			return;
+		}
+
         if ( vocab.containsKey(bigram) ){                  /// if bigram exists already in the vocabulary..
             counter = vocab.get(bigram);                  // get the counter from the hashtable
         }
@@ -169,6 +202,13 @@ public class BigramBayespam
     // Print the current content of the vocabulary
     private static void printVocab()
     {
+        if(offHeapVocab != null) {
+            for(int id = 0; id < offHeapVocab.size(); id++) {
+                System.out.println( offHeapVocab.word(id) + " | in regular: " + offHeapVocab.getCount(id, 0) + 
+                                    " in spam: "    + offHeapVocab.getCount(id, 1));
+            }
+            return;
+        }
         Multiple_Counter counter = new Multiple_Counter();
 
         for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
@@ -197,8 +237,17 @@ public class BigramBayespam
         }
         
         
-        for (int i = 0; i < messages.length; ++i)
+        if (shardCount > 1) {
+            Arrays.sort(messages);                       ///every shard must see the messages in the same order
+        }
+
+        for (int i = shardIndex; i < messages.length; i += shardCount)
         {
+            if (type == MessageType.NORMAL) {
+                nMessagesRegular++;
+            } else {
+                nMessagesSpam++;
+            }
 			///System.out.println(messages[i]);
             FileInputStream i_s = new FileInputStream( messages[i] );
             BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
@@ -343,6 +392,14 @@ public class BigramBayespam
 
 		///for all words in the message, use their conditional probabilities to update the probability of regular/spam
 		for(String w : messageVocab) {
+			if(offHeapVocab != null) {
+				int id = offHeapVocab.find(w);
+				if(id >= 0) {
+					log_regular += offHeapVocab.logProbGivenRegular(id);
+					log_spam += offHeapVocab.logProbGivenSpam(id);
+				}
+				continue;
+			}
         	if ( vocab.containsKey(w) ){                  // if word exists already in the vocabulary..
 				Multiple_Counter counter = new Multiple_Counter();
             	counter = vocab.get(w);                  // get the counter from the hashtable				
@@ -359,12 +416,60 @@ public class BigramBayespam
 		return false;
 	}
 
+	///write the vocabulary counts to a count table file
+	private static void saveCounts(File file)
+	throws IOException
+	{
+		int n = offHeapVocab != null ? offHeapVocab.size() : vocab.size();
+		String[] words = new String[n];
+		int[][] counts = new int[n][];
+		if(offHeapVocab != null) {
+			for(int id = 0; id < n; id++) {
+				words[id] = offHeapVocab.word(id);
+				counts[id] = new int[] {offHeapVocab.getCount(id, 0), offHeapVocab.getCount(id, 1)};
+			}
+		} else {
+			int i = 0;
+			for(Map.Entry<String, Multiple_Counter> e : vocab.entrySet()) {
+				words[i] = e.getKey();
+				counts[i++] = new int[] {e.getValue().counter_regular, e.getValue().counter_spam};
+			}
+		}
+		CountTable.write(file, nMessagesRegular, nMessagesSpam, words, counts);
+	}
+
+	///fill the vocabulary from a count table file instead of reading messages
+	private static void loadCounts(File file)
+	throws IOException
+	{
+		CountTable.Reader reader = new CountTable.Reader(file);
+		nMessagesRegular = reader.messagesRegular();
+		nMessagesSpam = reader.messagesSpam();
+		while(reader.next()) {
+			if(offHeapVocab != null) {
+				offHeapVocab.add(reader.token(), 0, reader.countRegular());
+				offHeapVocab.add(reader.token(), 1, reader.countSpam());
+			} else {
+				Multiple_Counter counter = new Multiple_Counter();
+				counter.counter_regular = reader.countRegular();
+				counter.counter_spam = reader.countSpam();
+				vocab.put(reader.token(), counter);
+			}
+		}
+		reader.close();
+	}
+
 	///calculate class conditional probabilities for all words in vocabulary
 	private static void computeCCProbs() {
 		Multiple_Counter counter = new Multiple_Counter();
 		int nWordsRegular = 0;
 		int nWordsSpam = 0;
 
+		if(offHeapVocab != null) {
+			computeOffHeapCCProbs();
+			return;
+		}
+
 		///count up the total words in Regular and Spam
         for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
         {   
@@ -401,6 +506,32 @@ public class BigramBayespam
 			counter.logProbGivenSpam = Math.log(probGivenSpam);
         }
 	}
+
+	///same as computeCCProbs, for the off-heap vocabulary
+	private static void computeOffHeapCCProbs() {
+		long nWordsRegular = 0;
+		long nWordsSpam = 0;
+
+		for(int id = 0; id < offHeapVocab.size(); id++) {
+			nWordsRegular += offHeapVocab.getCount(id, 0);
+			nWordsSpam += offHeapVocab.getCount(id, 1);
+		}
+
+		double minimum = epsilon / (nWordsRegular + nWordsSpam);
+		for(int id = 0; id < offHeapVocab.size(); id++) {
+			double probGivenRegular = (double)offHeapVocab.getCount(id, 0) / nWordsRegular;
+			double probGivenSpam = (double)offHeapVocab.getCount(id, 1) / nWordsSpam;
+
+			///Set zero probabilities to default minimum probability
+			if(probGivenRegular == 0) {
+				probGivenRegular = minimum;
+			}
+			if(probGivenSpam == 0) {
+				probGivenSpam = minimum;
+			}
+			offHeapVocab.setLogProbs(id, Math.log(probGivenRegular), Math.log(probGivenSpam));
+		}
+	}
    
     public static void main(String[] args)
     throws IOException
@@ -415,12 +546,59 @@ public class BigramBayespam
             Runtime.getRuntime().exit(0);
         }
 
-        // Initialize the regular and spam lists
-        listDirs(dir_location_train);
+		///optional arguments after the two directories
+		for(int i = 2; i < args.length; i++) {
+			if(args[i].equals("-offheap")) {
+				offHeapVocab = new OffHeapVocab();			///keep the vocabulary outside the java heap
+			} else if(args[i].equals("-shard") && i + 1 < args.length) {
+				String[] shard = args[++i].split("/");		///train on shard i of N
+				shardIndex = Integer.parseInt(shard[0]);
+				shardCount = Integer.parseInt(shard[1]);
+			} else if(args[i].equals("-savecounts") && i + 1 < args.length) {
+				saveCountsFile = new File(args[++i]);		///only write the counts, for ShardedTraining
+			} else if(args[i].equals("-counts") && i + 1 < args.length) {
+				loadCountsFile = new File(args[++i]);		///train from a (merged) count table
+			} else if(args[i].equals("-spill") && i + 1 < args.length) {
+				///count in a buffer of at most this many tokens, spilling sorted runs to disk
+				spillDir = java.nio.file.Files.createTempDirectory("bayespam-spill").toFile();
+				spillCounter = new SpillingCounter(Integer.parseInt(args[++i]), spillDir);
+			} else {
+				System.out.println( "- Error: unknown option " + args[i] + "\n" );
+				Runtime.getRuntime().exit(0);
+			}
+		}
+
+		if(loadCountsFile != null) {
+			loadCounts(loadCountsFile);
+		} else {
+			// Initialize the regular and spam lists
+			listDirs(dir_location_train);
 
-        // Read the e-mail messages
-        readMessages(MessageType.NORMAL);
-        readMessages(MessageType.SPAM);
+			// Read the e-mail messages
+			readMessages(MessageType.NORMAL);
+			readMessages(MessageType.SPAM);
+		}
+
+		///merge the spill files into the final counts, or straight into the count file of a shard
+		if(spillCounter != null) {
+			File table = saveCountsFile != null ? saveCountsFile : new File(spillDir, "vocab.counts");
+			long tokens = spillCounter.finish(table, saveCountsFile != null ? 0 : beta, nMessagesRegular, nMessagesSpam);
+			System.out.println("Merged " + tokens + " tokens from " + spillCounter.spills() + " spill files");
+			if(saveCountsFile == null) {
+				loadCounts(table);
+				table.delete();
+			}
+			spillDir.delete();
+			if(saveCountsFile != null) {
+				return;
+			}
+		}
+
+		///the counts are saved before simplifying, the minimum count only applies to the merged totals
+		if(saveCountsFile != null) {
+			saveCounts(saveCountsFile);
+			return;
+		}
 
 		/// Remove elements from the vocab with too few instances
 		simplifyVocab();
@@ -429,8 +607,6 @@ public class BigramBayespam
         printVocab();
 
         ///calculates the prior probabilities
-        double nMessagesRegular = listing_regular.length;
-        double nMessagesSpam = listing_spam.length;
         double nMessagesTotal = nMessagesRegular + nMessagesSpam;
 
         logPriorRegular = Math.log(nMessagesRegular / nMessagesTotal);
@@ -0,0 +1,51 @@
+///Blocked Bloom filter over token hashes. Every key sets k bits inside one 512-bit block (one cache line),
+///so a membership test touches a single cache line. Used in front of the vocabulary to reject the many
+///tokens of a message that are not in it without a full hash table lookup.
+public class BlockedBloomFilter
+{
+	private static final int BLOCK_WORDS = 8;					///8 longs = 512 bits = 64 bytes
+
+	private final long[] bits;
+	private final int nBlocks;
+	private final int k;
+
+	///expectedKeys: number of keys to be added; bitsPerKey: filter size per key (10 gives about 1% false positives)
+	public BlockedBloomFilter(int expectedKeys, int bitsPerKey) {
+		nBlocks = Math.max(1, (int)(((long)expectedKeys * bitsPerKey + 511) / 512));
+		bits = new long[nBlocks * BLOCK_WORDS];
+		///the optimal number of bits per key is ln 2 times the bits per key, a little more makes up for blocking
+		k = Math.max(1, Math.min(16, (int)Math.round(bitsPerKey * 0.7)));
+	}
+
+	public void add(long hash) {
+		int base = block(hash) * BLOCK_WORDS;
+		long h = TokenHash.finish(hash + 0x9e3779b97f4a7c15L);
+		for(int i = 0; i < k; i++) {
+			int bit = (int)(h & 511);
+			bits[base + (bit >>> 6)] |= 1L << bit;
+			h = i % 7 == 6 ? TokenHash.finish(h) : h >>> 9;		///a 64-bit hash holds 7 bit positions
+		}
+	}
+
+	///false means the key was certainly never added, true means it probably was
+	public boolean mightContain(long hash) {
+		int base = block(hash) * BLOCK_WORDS;
+		long h = TokenHash.finish(hash + 0x9e3779b97f4a7c15L);
+		for(int i = 0; i < k; i++) {
+			int bit = (int)(h & 511);
+			if((bits[base + (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			h = i % 7 == 6 ? TokenHash.finish(h) : h >>> 9;
+		}
+		return true;
+	}
+
+	public long sizeBytes() {
+		return 8L * bits.length;
+	}
+
+	private int block(long hash) {
+		return (int)(((hash >>> 32) * nBlocks) >>> 32);
+	}
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+import java.util.*;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+
+///Per-thread scratch state for classification, reused between messages so that steady-state
+///classification allocates nothing. Not thread-safe: use one instance per thread.
+public class ClassifyScratch
+{
+	///epoch-stamped set of token ids (or model slots): id s was seen in the current message if seen[s] == epoch,
+	///so starting a new message only increments the epoch instead of clearing the set
+	int[] seen = new int[0];
+	int epoch = 0;
+
+	///model slots of the distinct tokens of the message being classified
+	int[] slots = new int[256];
+
+	///the result object returned by MessageClassifier.classify
+	final Verdict verdict = new Verdict();
+
+	///buffer wrapping the byte[] most recently passed to MessageClassifier
+	java.nio.ByteBuffer wrapped;
+
+	///reusable buffer holding the bytes of the message being classified
+	byte[] buffer = new byte[1 << 16];
+
+	///reusable list of the tokens of the message being classified, for the String based path of Bayespam
+	final ArrayList<String> tokens = new ArrayList<String>();
+
+	///reusable decoder, characters of the message being classified and word being cleaned, for the String
+	///based path of Bayespam
+	final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+								   .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	CharBuffer chars = CharBuffer.allocate(1 << 16);
+	final StringBuilder word = new StringBuilder();
+
+	///header field of every token in tokens, and the header state of the message being classified
+	int[] tokenFields = new int[256];
+	final HeaderFields headerFields = new HeaderFields();
+
+	public ClassifyScratch() {
+	}
+
+	public ClassifyScratch(MessageClassifier classifier) {
+		ensureCapacity(classifier.modelSize());
+	}
+
+	///make room for ids below n
+	void ensureCapacity(int n) {
+		if(seen.length < n) {
+			seen = Arrays.copyOf(seen, Math.max(n, seen.length * 2));		///new entries are 0, never a current epoch
+		}
+	}
+
+	///start a new message
+	void nextMessage() {
+		if(++epoch == 0) {							///after wrapping around, old stamps could look current
+			Arrays.fill(seen, 0);
+			epoch = 1;
+		}
+	}
+
+	///true the first time an id is marked in the current message
+	boolean markSeen(int id) {
+		if(seen[id] == epoch) {
+			return false;
+		}
+		seen[id] = epoch;
+		return true;
+	}
+
+	///decode the first length bytes of a message into the reusable characters, as an InputStreamReader with
+	///the default charset would; the result is valid until the next call
+	CharBuffer decode(byte[] bytes, int length) {
+		java.nio.ByteBuffer in = MessageClassifier.wrap(bytes, 0, length, this);
+		int capacity = (int)Math.ceil(length * (double)decoder.maxCharsPerByte());
+		if(chars.capacity() < capacity) {
+			chars = CharBuffer.allocate(Math.max(capacity, chars.capacity() * 2));
+		}
+		chars.clear();
+		decoder.reset();
+		decoder.decode(in, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+		return chars;
+	}
+
+	///read a whole file into the reusable buffer, growing it if needed, and return the number of bytes
+	int read(File file)
+	throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int length = 0;
+			int n;
+			while((n = in.read(buffer, length, buffer.length - length)) > 0) {
+				length += n;
+				if(length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+			}
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,222 @@
+import java.util.*;
+
+///Read-only scoring model compiled from a trained vocabulary.
+///Tokens are identified by their TokenHash value and placed with a minimal perfect hash (hash and
+///displace: keys are split into buckets, every bucket stores one displacement that sends its keys to
+///free slots), so n tokens occupy exactly n slots. Each slot keeps a 16-bit fingerprint to reject
+///tokens that are not in the vocabulary, and the log-probabilities are stored densely by slot.
+public class CompiledModel
+{
+	///average number of keys per bucket, lower is faster to build but needs more displacements
+	private static final int KEYS_PER_BUCKET = 3;
+
+	///give up on a bucket after this many displacement seeds (does not happen with distinct hashes)
+	private static final int MAX_SEED = 1 << 24;
+
+	private int size;
+	private int nBuckets;
+
+	///displacement per bucket: a seed (>= 0), or -(slot + 1) for buckets holding a single key
+	private int[] displacement;
+
+	///16-bit fingerprint of the key stored in every slot
+	private short[] fingerprint;
+
+	///log-probabilities, indexed by slot
+	private double[] logProbGivenRegular;
+	private double[] logProbGivenSpam;
+
+	///collects the tokens and their log-probabilities before compiling
+	public static class Builder
+	{
+		private long[] hashes = new long[1024];
+		private double[] regular = new double[1024];
+		private double[] spam = new double[1024];
+		private int n = 0;
+
+		public void add(String word, double logProbGivenRegular, double logProbGivenSpam) {
+			add(TokenHash.hash(word), logProbGivenRegular, logProbGivenSpam);
+		}
+
+		public void add(long hash, double logProbGivenRegular, double logProbGivenSpam) {
+			if(n == hashes.length) {
+				hashes = Arrays.copyOf(hashes, n * 2);
+				regular = Arrays.copyOf(regular, n * 2);
+				spam = Arrays.copyOf(spam, n * 2);
+			}
+			hashes[n] = hash;
+			regular[n] = logProbGivenRegular;
+			spam[n] = logProbGivenSpam;
+			n++;
+		}
+
+		public CompiledModel build() {
+			return new CompiledModel(hashes, regular, spam, n);
+		}
+	}
+
+	private CompiledModel(long[] hashes, double[] regular, double[] spam, int n) {
+		size = n;
+		nBuckets = Math.max(1, n / KEYS_PER_BUCKET);
+		displacement = new int[nBuckets];
+		fingerprint = new short[n];
+		logProbGivenRegular = new double[n];
+		logProbGivenSpam = new double[n];
+
+		///group the keys by bucket (counting sort), then order the buckets from large to small
+		int[] bucketStart = new int[nBuckets + 1];
+		for(int i = 0; i < n; i++) {
+			bucketStart[bucketOf(hashes[i]) + 1]++;
+		}
+		int maxBucketSize = 0;
+		for(int b = 0; b < nBuckets; b++) {
+			maxBucketSize = Math.max(maxBucketSize, bucketStart[b + 1]);
+			bucketStart[b + 1] += bucketStart[b];
+		}
+		int[] keysByBucket = new int[n];
+		int[] fill = Arrays.copyOf(bucketStart, nBuckets);
+		for(int i = 0; i < n; i++) {
+			keysByBucket[fill[bucketOf(hashes[i])]++] = i;
+		}
+		int[] sizeStart = new int[maxBucketSize + 2];
+		for(int b = 0; b < nBuckets; b++) {
+			sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+		}
+		for(int s = 0; s <= maxBucketSize; s++) {
+			sizeStart[s + 1] += sizeStart[s];
+		}
+		int[] bucketOrder = new int[nBuckets];
+		for(int b = 0; b < nBuckets; b++) {
+			bucketOrder[sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+		}
+
+		boolean[] taken = new boolean[n];
+		int[] slots = new int[maxBucketSize];
+		int nextFree = 0;
+		for(int b : bucketOrder) {
+			int first = bucketStart[b];
+			int count = bucketStart[b + 1] - first;
+			if(count == 0) {
+				break;									///buckets are sorted by size, the rest are empty
+			}
+			if(count == 1) {
+				///a single key can go to any free slot, store the slot itself
+				while(taken[nextFree]) {
+					nextFree++;
+				}
+				taken[nextFree] = true;
+				displacement[b] = -(nextFree + 1);
+				place(keysByBucket[first], nextFree, hashes, regular, spam);
+				continue;
+			}
+			for(int k = 1; k < count; k++) {
+				for(int j = 0; j < k; j++) {
+					if(hashes[keysByBucket[first + j]] == hashes[keysByBucket[first + k]]) {
+						throw new IllegalArgumentException("duplicate token hash " + Long.toHexString(hashes[keysByBucket[first + k]]));
+					}
+				}
+			}
+			///search for a seed that sends all keys of the bucket to distinct free slots
+			for(int seed = 0; ; seed++) {
+				if(seed == MAX_SEED) {
+					throw new IllegalStateException("could not place bucket of " + count + " keys");
+				}
+				boolean ok = true;
+				for(int k = 0; k < count && ok; k++) {
+					slots[k] = slotOf(hashes[keysByBucket[first + k]], seed);
+					ok = !taken[slots[k]];
+					for(int j = 0; j < k && ok; j++) {
+						ok = slots[j] != slots[k];
+					}
+				}
+				if(ok) {
+					for(int k = 0; k < count; k++) {
+						taken[slots[k]] = true;
+						place(keysByBucket[first + k], slots[k], hashes, regular, spam);
+					}
+					displacement[b] = seed;
+					break;
+				}
+			}
+		}
+	}
+
+	private void place(int key, int slot, long[] hashes, double[] regular, double[] spam) {
+		fingerprint[slot] = fingerprintOf(hashes[key]);
+		logProbGivenRegular[slot] = regular[key];
+		logProbGivenSpam[slot] = spam[key];
+	}
+
+	///number of tokens in the model
+	public int size() {
+		return size;
+	}
+
+	///slot of a token, or -1 if the token is not in the model
+	public int lookup(String word) {
+		return lookup(TokenHash.hash(word));
+	}
+
+	///slot of a token hash, or -1 if the token is not in the model
+	public int lookup(long hash) {
+		if(size == 0) {
+			return -1;
+		}
+		return lookup(hash, displacement, fingerprint, nBuckets, size);
+	}
+
+	///lookup shared with QuantizedModel, which uses the same index without the full-precision values
+	static int lookup(long hash, int[] displacement, short[] fingerprint, int nBuckets, int size) {
+		int d = displacement[bucketOf(hash, nBuckets)];
+		int slot = d < 0 ? -d - 1 : slotOf(hash, d, size);
+		if(fingerprint[slot] != fingerprintOf(hash)) {
+			return -1;
+		}
+		return slot;
+	}
+
+	public double logProbGivenRegular(int slot) {
+		return logProbGivenRegular[slot];
+	}
+
+	public double logProbGivenSpam(int slot) {
+		return logProbGivenSpam[slot];
+	}
+
+	///bytes used by the hash function and fingerprints, on top of the log-probabilities
+	public long indexBytes() {
+		return 4L * displacement.length + 2L * fingerprint.length;
+	}
+
+	///build a model with one quantized log-odds value per token (8 or 16 bits), sharing this model's index
+	public QuantizedModel quantize(int bits) {
+		double[] logOdds = new double[size];
+		for(int slot = 0; slot < size; slot++) {
+			logOdds[slot] = logProbGivenSpam[slot] - logProbGivenRegular[slot];
+		}
+		return new QuantizedModel(displacement, fingerprint, nBuckets, logOdds, bits);
+	}
+
+	private int bucketOf(long hash) {
+		return bucketOf(hash, nBuckets);
+	}
+
+	private int slotOf(long hash, int seed) {
+		return slotOf(hash, seed, size);
+	}
+
+	///map the low half of the hash onto a bucket
+	private static int bucketOf(long hash, int nBuckets) {
+		return (int)(((hash & 0xffffffffL) * nBuckets) >>> 32);
+	}
+
+	///map the hash and a seed onto a slot
+	private static int slotOf(long hash, int seed, int size) {
+		long h = TokenHash.finish(hash ^ (seed * 0x9e3779b97f4a7c15L));
+		return (int)(((h >>> 32) * size) >>> 32);
+	}
+
+	private static short fingerprintOf(long hash) {
+		return (short)(hash >>> 48);
+	}
+}
@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+///Reads all message files below some directories with many reads in flight at once, for corpora on slow or
+///networked disks where reading one file after another mostly waits on latency.
+///A walker thread streams the directories (recursively, without building complete listings) and starts a
+///read per file; reads run on virtual threads when the JVM has them (Java 21 and later) and on a pool of
+///platform threads otherwise. Read messages can be tokenized on a fixed pool of platform threads. The
+///caller takes the finished messages with take(), in completion order. At most `capacity` messages are
+///read or waiting at any time, so memory stays bounded and reading slows down to the pace of the caller.
+///The caller must close the reader when done, also when take() throws; take() shuts the threads down itself
+///before throwing a read failure.
+public class ConcurrentMessageReader
+{
+	///a message file with its class (0 regular, 1 spam), bytes and, if tokenized, its cleaned words
+	public static class Message
+	{
+		public final Path path;
+		public final int type;
+		public final byte[] bytes;
+		public ArrayList<String> words;
+
+		Message(Path path, int type, byte[] bytes) {
+			this.path = path;
+			this.type = type;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final Message END = new Message(null, -1, null);
+
+	private final ExecutorService io;
+	private final ExecutorService tokenizers;
+	private final Semaphore permits;
+	private final LinkedBlockingQueue<Message> done = new LinkedBlockingQueue<Message>();
+
+	///tasks not finished yet, plus one for the walker; the one that brings it to 0 adds END
+	private final AtomicInteger pending = new AtomicInteger(1);
+	private volatile IOException failure = null;
+
+	///reads with at most capacity messages in flight; tokenizerThreads 0 leaves messages untokenized
+	public ConcurrentMessageReader(int capacity, int tokenizerThreads) {
+		permits = new Semaphore(capacity);
+		io = ioExecutor(capacity);
+		tokenizers = tokenizerThreads > 0 ? Executors.newFixedThreadPool(tokenizerThreads) : null;
+	}
+
+	///virtual threads if the JVM has them (looked up by reflection, so this also builds on older JDKs)
+	private static ExecutorService ioExecutor(int capacity) {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(Exception e) {
+			return Executors.newFixedThreadPool(capacity);
+		}
+	}
+
+	public boolean usesVirtualThreads() {
+		return !(io instanceof ThreadPoolExecutor);
+	}
+
+	///start reading the files below the directories, dirs[i] holding messages of class types[i]
+	public void start(final Path[] dirs, final int[] types) {
+		Thread walker = new Thread("message walker") {
+			public void run() {
+				try {
+					for(int i = 0; i < dirs.length; i++) {
+						walk(dirs[i], types[i]);
+					}
+				} catch(IOException e) {
+					failure = e;
+				} catch(RejectedExecutionException e) {
+					///closed while walking, after a failure
+				} catch(InterruptedException e) {
+					failure = new InterruptedIOException("walker interrupted");
+				} finally {
+					finishTask();
+				}
+			}
+		};
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	private void walk(Path dir, final int type)
+	throws IOException, InterruptedException
+	{
+		DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+		try {
+			for(final Path path : stream) {
+				if(failure != null) {
+					return;
+				}
+				if(Files.isDirectory(path)) {
+					walk(path, type);
+					continue;
+				}
+				permits.acquire();								///wait while enough messages are in flight
+				pending.incrementAndGet();
+				io.execute(new Runnable() {
+					public void run() {
+						try {
+							Message message = new Message(path, type, Files.readAllBytes(path));
+							if(tokenizers != null) {
+								tokenize(message);
+							} else {
+								done.add(message);
+								finishTask();
+							}
+						} catch(IOException e) {
+							failure = e;
+							permits.release();
+							finishTask();
+						}
+					}
+				});
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private void tokenize(final Message message) {
+		tokenizers.execute(new Runnable() {
+			public void run() {
+				///the same words as Bayespam.readMessage: the default charset, split on whitespace, cleaned
+				ArrayList<String> words = new ArrayList<String>();
+				StringTokenizer st = new StringTokenizer(new String(message.bytes));
+				while(st.hasMoreTokens()) {
+					String word = Bayespam.cleanWord(st.nextToken());
+					if(word.length() > 0) {
+						words.add(word);
+					}
+				}
+				message.words = words;
+				done.add(message);
+				finishTask();
+			}
+		});
+	}
+
+	private void finishTask() {
+		if(pending.decrementAndGet() == 0) {
+			done.add(END);
+		}
+	}
+
+	///the next finished message, or null when all are taken
+	public Message take()
+	throws IOException
+	{
+		try {
+			Message message = done.take();
+			if(failure != null) {
+				close();
+				throw failure;
+			}
+			if(message == END) {
+				done.add(END);									///later calls see the end as well
+				return null;
+			}
+			permits.release();
+			return message;
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException("interrupted while reading messages");
+		}
+	}
+
+	public void close() {
+		io.shutdown();
+		if(tokenizers != null) {
+			tokenizers.shutdown();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.util.*;
+
+///Writes synthetic corpora of any size in the layout Bayespam reads (train/ and test/, each with regular/
+///and spam/), for load testing training and classification far beyond the bundled samples.
+///Per class the generator learns from a sample directory:
+/// - the token frequencies: sample tokens are drawn with their sample frequencies, except for the share of
+///   unseen tokens estimated with Good-Turing (tokens seen once / all tokens), which goes to a Zipf tail of
+///   synthetic words with the exponent fitted to the sample; so the vocabulary keeps growing with the
+///   corpus as in real mail
+/// - the distribution of message lengths (tokens per message) and line lengths
+/// - campaign duplication: the fraction of messages that are near-copies of an earlier one; such messages
+///   are generated as a copy of a recent campaign message with a few tokens changed
+///The output only depends on the sample and the seed.
+///
+///usage: java CorpusGenerator <sample dir> <output dir> <messages> [seed] [test fraction] [vocabulary size]
+public class CorpusGenerator
+{
+	///a message counts as a campaign copy if this share of its distinct tokens occurs in an earlier message
+	private static final double DUPLICATE_OVERLAP = 0.8;
+
+	///share of the tokens changed in a campaign copy, and the number of campaigns kept around
+	private static final double MUTATION_RATE = 0.05;
+	private static final int CAMPAIGNS = 64;
+
+	///what is learned from the sample messages of one class
+	private static class ClassModel
+	{
+		String[] tokens;				///sample tokens by decreasing frequency
+		double[] cumulative;			///cumulative probabilities of the ranks, sample tokens first
+		double exponent;
+		int[] lengths;					///tokens per sample message
+		int[] lineLengths;				///tokens per sample line
+		double duplicateRate;
+		ArrayList<String[]> campaigns = new ArrayList<String[]>();
+	}
+
+	private static Random random;
+	private static int vocabularySize = 1000000;
+
+	///read the tokens of a message, line by line; bytes are kept as they are
+	private static ArrayList<String[]> readLines(File message)
+	throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(message), "ISO-8859-1"));
+		ArrayList<String[]> lines = new ArrayList<String[]>();
+		String line;
+		while((line = in.readLine()) != null) {
+			StringTokenizer st = new StringTokenizer(line);
+			String[] tokens = new String[st.countTokens()];
+			for(int i = 0; i < tokens.length; i++) {
+				tokens[i] = st.nextToken();
+			}
+			if(tokens.length > 0) {
+				lines.add(tokens);
+			}
+		}
+		in.close();
+		return lines;
+	}
+
+	private static ClassModel learn(File[] messages)
+	throws IOException
+	{
+		ClassModel model = new ClassModel();
+		final HashMap<String, Integer> frequency = new HashMap<String, Integer>();
+		ArrayList<Integer> lengths = new ArrayList<Integer>();
+		ArrayList<Integer> lineLengths = new ArrayList<Integer>();
+		ArrayList<HashSet<String>> seen = new ArrayList<HashSet<String>>();
+		int duplicates = 0;
+
+		Arrays.sort(messages);
+		for(File message : messages) {
+			int length = 0;
+			HashSet<String> distinct = new HashSet<String>();
+			for(String[] line : readLines(message)) {
+				lineLengths.add(line.length);
+				length += line.length;
+				for(String t : line) {
+					Integer f = frequency.get(t);
+					frequency.put(t, f == null ? 1 : f + 1);
+					distinct.add(t);
+				}
+			}
+			lengths.add(length);
+
+			///a sample is small, so every earlier message can be compared
+			for(HashSet<String> earlier : seen) {
+				int common = 0;
+				for(String t : distinct) {
+					if(earlier.contains(t)) {
+						common++;
+					}
+				}
+				if(!distinct.isEmpty() && common >= DUPLICATE_OVERLAP * distinct.size()) {
+					duplicates++;
+					break;
+				}
+			}
+			seen.add(distinct);
+		}
+
+		model.tokens = frequency.keySet().toArray(new String[0]);
+		Arrays.sort(model.tokens, new Comparator<String>() {
+			public int compare(String a, String b) {
+				int c = frequency.get(b).compareTo(frequency.get(a));
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+		model.lengths = toArray(lengths);
+		model.lineLengths = toArray(lineLengths);
+		model.duplicateRate = messages.length == 0 ? 0 : (double)duplicates / messages.length;
+
+		///least squares fit of log frequency = c - exponent * log rank
+		double n = model.tokens.length, sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for(int r = 0; r < model.tokens.length; r++) {
+			double x = Math.log(r + 1);
+			double y = Math.log(frequency.get(model.tokens[r]));
+			sx += x;
+			sy += y;
+			sxx += x * x;
+			sxy += x * y;
+		}
+		model.exponent = n < 2 ? 1 : Math.max(0.5, -(n * sxy - sx * sy) / (n * sxx - sx * sx));
+
+		///the sample tokens keep their frequencies, the tail gets the Good-Turing estimate of unseen tokens
+		long nTokens = 0;
+		int seenOnce = 0;
+		for(int f : frequency.values()) {
+			nTokens += f;
+			seenOnce += f == 1 ? 1 : 0;
+		}
+		double unseen = nTokens == 0 ? 1 : (double)seenOnce / nTokens;
+		int ranks = Math.max(vocabularySize, model.tokens.length);
+		double tail = 0;
+		for(int r = model.tokens.length; r < ranks; r++) {
+			tail += Math.pow(r + 1, -model.exponent);
+		}
+		model.cumulative = new double[ranks];
+		double total = 0;
+		for(int r = 0; r < ranks; r++) {
+			if(r < model.tokens.length) {
+				total += (1 - unseen) * frequency.get(model.tokens[r]) / nTokens;
+			} else {
+				total += unseen * Math.pow(r + 1, -model.exponent) / tail;
+			}
+			model.cumulative[r] = total;
+		}
+		return model;
+	}
+
+	private static int[] toArray(ArrayList<Integer> list) {
+		int[] array = new int[Math.max(1, list.size())];
+		for(int i = 0; i < list.size(); i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	///draw a token: a rank from the learned distribution, then the sample token or a synthetic word for that rank
+	private static String token(ClassModel model) {
+		double u = random.nextDouble() * model.cumulative[model.cumulative.length - 1];
+		int rank = Arrays.binarySearch(model.cumulative, u);
+		rank = rank >= 0 ? rank : -rank - 1;
+		if(rank < model.tokens.length) {
+			return model.tokens[rank];
+		}
+		///spell the rank in letters, long enough to pass the minimum word length of the classifiers
+		StringBuilder word = new StringBuilder();
+		for(int r = rank; r > 0 || word.length() < 6; r /= 26) {
+			word.append((char)('a' + r % 26));
+		}
+		return word.toString();
+	}
+
+	private static String[] message(ClassModel model) {
+		if(!model.campaigns.isEmpty() && random.nextDouble() < model.duplicateRate) {
+			///a copy of a campaign with a few tokens changed
+			String[] copy = model.campaigns.get(random.nextInt(model.campaigns.size())).clone();
+			for(int i = 0; i < copy.length; i++) {
+				if(random.nextDouble() < MUTATION_RATE) {
+					copy[i] = token(model);
+				}
+			}
+			return copy;
+		}
+		String[] tokens = new String[model.lengths[random.nextInt(model.lengths.length)]];
+		for(int i = 0; i < tokens.length; i++) {
+			tokens[i] = token(model);
+		}
+		if(model.duplicateRate > 0) {				///every new message may start a campaign
+			if(model.campaigns.size() == CAMPAIGNS) {
+				model.campaigns.set(random.nextInt(CAMPAIGNS), tokens);
+			} else {
+				model.campaigns.add(tokens);
+			}
+		}
+		return tokens;
+	}
+
+	private static void write(File file, String[] tokens, ClassModel model)
+	throws IOException
+	{
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+		int i = 0;
+		while(i < tokens.length) {
+			int end = Math.min(tokens.length, i + Math.max(1, model.lineLengths[random.nextInt(model.lineLengths.length)]));
+			for(; i < end; i++) {
+				out.write(tokens[i]);
+				out.write(i + 1 < end ? ' ' : '\n');
+			}
+		}
+		out.close();
+	}
+
+	public static void main(String[] args)
+	throws IOException
+	{
+		if(args.length < 3 || !new File(args[0], "regular").isDirectory() || !new File(args[0], "spam").isDirectory()) {
+			System.out.println( "- Error: usage: java CorpusGenerator <sample dir with regular/ and spam/> <output dir> <messages> [seed] [test fraction] [vocabulary size]\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		File sample = new File(args[0]);
+		File output = new File(args[1]);
+		long nMessages = Long.parseLong(args[2]);
+		random = new Random(args.length > 3 ? Long.parseLong(args[3]) : 1);
+		double testFraction = args.length > 4 ? Double.parseDouble(args[4]) : 0.1;
+		if(args.length > 5) {
+			vocabularySize = Integer.parseInt(args[5]);
+		}
+
+		File[] regularSample = new File(sample, "regular").listFiles();
+		File[] spamSample = new File(sample, "spam").listFiles();
+		ClassModel[] models = {learn(regularSample), learn(spamSample)};
+		double spamFraction = (double)spamSample.length / (regularSample.length + spamSample.length);
+		String[] classNames = {"regular", "spam"};
+		for(int c = 0; c < 2; c++) {
+			System.out.println(classNames[c] + ": " + models[c].tokens.length + " sample tokens, Zipf exponent " + models[c].exponent +
+								", campaign copies " + models[c].duplicateRate);
+		}
+
+		for(String set : new String[] {"train", "test"}) {
+			for(String name : classNames) {
+				new File(new File(output, set), name).mkdirs();
+			}
+		}
+		long start = System.currentTimeMillis();
+		for(long m = 0; m < nMessages; m++) {
+			int c = random.nextDouble() < spamFraction ? 1 : 0;
+			String set = random.nextDouble() < testFraction ? "test" : "train";
+			File file = new File(new File(new File(output, set), classNames[c]), String.format("%s-%09d.msg", classNames[c], m));
+			write(file, message(models[c]), models[c]);
+		}
+		System.out.println("Wrote " + nMessages + " messages in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.util.*;
+
+///File format for token count tables, sorted by token so tables can be merged in one streaming pass.
+///Layout: magic, number of regular and spam messages, then for every token a marker byte (1), the token,
+///its regular count and its spam count, and finally a marker byte 0.
+public class CountTable
+{
+	private static final int MAGIC = 0x42434e54;
+
+	///writes a table; tokens must be added in increasing order
+	public static class Writer
+	{
+		private DataOutputStream out;
+		private String last = null;
+		private long tokens = 0;
+
+		public Writer(File file, long nMessagesRegular, long nMessagesSpam)
+		throws IOException
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeLong(nMessagesRegular);
+			out.writeLong(nMessagesSpam);
+		}
+
+		public void add(String token, int countRegular, int countSpam)
+		throws IOException
+		{
+			if(last != null && last.compareTo(token) >= 0) {
+				throw new IllegalArgumentException("tokens out of order: " + last + ", " + token);
+			}
+			out.writeByte(1);
+			out.writeUTF(token);
+			out.writeInt(countRegular);
+			out.writeInt(countSpam);
+			last = token;
+			tokens++;
+		}
+
+		public long tokens() {
+			return tokens;
+		}
+
+		public void close()
+		throws IOException
+		{
+			out.writeByte(0);
+			out.close();
+		}
+	}
+
+	///reads a table one token at a time
+	public static class Reader
+	{
+		private DataInputStream in;
+		private long nMessagesRegular;
+		private long nMessagesSpam;
+		private String token;
+		private int countRegular;
+		private int countSpam;
+
+		public Reader(File file)
+		throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if(in.readInt() != MAGIC) {
+				in.close();
+				throw new IOException(file + " is not a count table");
+			}
+			nMessagesRegular = in.readLong();
+			nMessagesSpam = in.readLong();
+		}
+
+		///move to the next token, returns false at the end of the table
+		public boolean next()
+		throws IOException
+		{
+			if(in.readByte() == 0) {
+				token = null;
+				return false;
+			}
+			token = in.readUTF();
+			countRegular = in.readInt();
+			countSpam = in.readInt();
+			return true;
+		}
+
+		public String token() {
+			return token;
+		}
+
+		public int countRegular() {
+			return countRegular;
+		}
+
+		public int countSpam() {
+			return countSpam;
+		}
+
+		public long messagesRegular() {
+			return nMessagesRegular;
+		}
+
+		public long messagesSpam() {
+			return nMessagesSpam;
+		}
+
+		public void close()
+		throws IOException
+		{
+			in.close();
+		}
+	}
+
+	///write a table from unsorted tokens and counts (counts[i] holds the regular and spam count of tokens[i])
+	public static void write(File file, long nMessagesRegular, long nMessagesSpam, String[] tokens, int[][] counts)
+	throws IOException
+	{
+		Integer[] order = new Integer[tokens.length];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final String[] t = tokens;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return t[a].compareTo(t[b]);
+			}
+		});
+		Writer writer = new Writer(file, nMessagesRegular, nMessagesSpam);
+		for(int i : order) {
+			writer.add(tokens[i], counts[i][0], counts[i][1]);
+		}
+		writer.close();
+	}
+
+	///most tables merged in one pass, bounding the number of open files and read buffers
+	static final int MAX_FAN_IN = 64;
+
+	///k-way merge of sorted tables: counts of identical tokens are summed, tokens with a total below
+	///minTotal are dropped, and the message counts of all inputs are added up. With more than MAX_FAN_IN
+	///inputs, groups of MAX_FAN_IN tables are first merged into intermediate tables next to the output,
+	///pass after pass, until one pass can merge the rest; intermediate tables keep all tokens, since their
+	///totals are not final, and are deleted as soon as they are merged.
+	public static long merge(List<File> inputs, File output, int minTotal)
+	throws IOException
+	{
+		List<File> tables = inputs;
+		boolean intermediate = false;
+		while(tables.size() > MAX_FAN_IN) {
+			ArrayList<File> runs = new ArrayList<File>();
+			for(int i = 0; i < tables.size(); i += MAX_FAN_IN) {
+				List<File> group = tables.subList(i, Math.min(i + MAX_FAN_IN, tables.size()));
+				File run = File.createTempFile("merge", ".counts", output.getAbsoluteFile().getParentFile());
+				mergePass(group, run, 0);
+				runs.add(run);
+				if(intermediate) {
+					for(File f : group) {
+						f.delete();
+					}
+				}
+			}
+			tables = runs;
+			intermediate = true;
+		}
+		long tokens = mergePass(tables, output, minTotal);
+		if(intermediate) {
+			for(File f : tables) {
+				f.delete();
+			}
+		}
+		return tokens;
+	}
+
+	///one pass of merge, over all inputs at once
+	private static long mergePass(List<File> inputs, File output, int minTotal)
+	throws IOException
+	{
+		PriorityQueue<Reader> queue = new PriorityQueue<Reader>(Math.max(1, inputs.size()), new Comparator<Reader>() {
+			public int compare(Reader a, Reader b) {
+				return a.token().compareTo(b.token());
+			}
+		});
+		long nMessagesRegular = 0;
+		long nMessagesSpam = 0;
+		ArrayList<Reader> readers = new ArrayList<Reader>();
+		for(File f : inputs) {
+			Reader r = new Reader(f);
+			readers.add(r);
+			nMessagesRegular += r.messagesRegular();
+			nMessagesSpam += r.messagesSpam();
+			if(r.next()) {
+				queue.add(r);
+			}
+		}
+
+		Writer writer = new Writer(output, nMessagesRegular, nMessagesSpam);
+		while(!queue.isEmpty()) {
+			String token = queue.peek().token();
+			long regular = 0;
+			long spam = 0;
+			///pop every reader positioned on this token, then put them back at their next token
+			while(!queue.isEmpty() && queue.peek().token().equals(token)) {
+				Reader r = queue.poll();
+				regular += r.countRegular();
+				spam += r.countSpam();
+				if(r.next()) {
+					queue.add(r);
+				}
+			}
+			if(regular + spam >= minTotal) {
+				writer.add(token, (int)Math.min(regular, Integer.MAX_VALUE), (int)Math.min(spam, Integer.MAX_VALUE));
+			}
+		}
+		writer.close();
+		for(Reader r : readers) {
+			r.close();
+		}
+		return writer.tokens();
+	}
+}
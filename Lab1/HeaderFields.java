@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+
+///Header-aware tokens: every token of a message belongs to a field, so the vocabulary can keep evidence
+///from the subject, the sender and the body apart ("viagra" in a subject is not the same feature as in
+///a body). The field of a token is decided per line: the header block runs from the first line to the
+///first empty line, a header line starts a field by its name and continuation lines (starting with
+///whitespace) stay in it. A message whose first line is not a header line has only a body.
+///The field is mixed into the token hash by starting it from a per-field seed, computed once, instead
+///of building prefixed strings like "subject:viagra"; the body uses TokenHash.SEED, so body tokens hash
+///exactly as without fields.
+///An object tracks the header state of one message at a time; use one per thread.
+public class HeaderFields
+{
+	public static final int BODY = 0;
+	public static final int SUBJECT = 1;
+	public static final int FROM = 2;
+	public static final int HEADER = 3;							///all other header lines
+	public static final int COUNT = 4;
+	public static final String[] NAMES = {"body", "subject", "from", "header"};
+
+	///hash seed per field
+	private static final long[] SEEDS = new long[COUNT];
+	static {
+		SEEDS[BODY] = TokenHash.SEED;
+		for(int f = 1; f < COUNT; f++) {
+			SEEDS[f] = TokenHash.finish(TokenHash.SEED + f * 0x9e3779b97f4a7c15L);
+		}
+	}
+
+	///header names are compared up to this length, longer names are other headers
+	private static final int MAX_NAME = 16;
+
+	private boolean inHeaders;
+	private boolean firstLine;
+	private int field;
+
+	///lowercased name of the header on the current line
+	private final char[] name = new char[MAX_NAME];
+
+	public HeaderFields() {
+		startMessage();
+	}
+
+	///the running hash to start a token of a field from, for TokenHash.step
+	public static long seed(int field) {
+		return SEEDS[field];
+	}
+
+	///hash of a whole token in a field
+	public static long hash(int field, CharSequence word) {
+		long h = SEEDS[field];
+		for(int i = 0; i < word.length(); i++) {
+			h = TokenHash.step(h, word.charAt(i));
+		}
+		return TokenHash.finish(h);
+	}
+
+	///start tracking a new message
+	public void startMessage() {
+		inHeaders = true;
+		firstLine = true;
+		field = BODY;
+	}
+
+	///the field of the tokens on the next line of the message, given without its line terminator
+	public int line(CharSequence line) {
+		return line(line, 0, line.length());
+	}
+
+	///the field of the tokens on the next line of the message, the characters from start to end of text
+	public int line(CharSequence text, int start, int end) {
+		if(!inHeaders) {
+			return BODY;
+		}
+		int n = 0;
+		boolean colon = false;
+		for(int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if(c == ':') {
+				colon = true;
+				break;
+			}
+			if(c <= ' ' || c > '~') {
+				break;
+			}
+			if(n < MAX_NAME) {
+				name[n] = Character.toLowerCase(c);
+			}
+			n++;
+		}
+		return next(start == end, start < end ? text.charAt(start) : ' ', n, colon, start + n < end && text.charAt(start + n) == ' ');
+	}
+
+	///the field of the tokens on the line starting at position start of a message (UTF-8 or ASCII bytes,
+	///lines ending in \n, \r\n or \r); only reads as far as the header name
+	public int line(ByteBuffer message, int start, int limit) {
+		if(!inHeaders) {
+			return BODY;
+		}
+		int n = 0;
+		boolean colon = false;
+		int i;
+		for(i = start; i < limit; i++) {
+			int c = message.get(i) & 0xff;
+			if(c == ':') {
+				colon = true;
+				break;
+			}
+			if(c <= ' ' || c > '~') {
+				break;
+			}
+			if(n < MAX_NAME) {
+				name[n] = Character.toLowerCase((char)c);
+			}
+			n++;
+		}
+		///a line starting with its terminator is empty
+		boolean empty = start == limit || message.get(start) == '\n' || message.get(start) == '\r';
+		char first = start < limit ? (char)(message.get(start) & 0xff) : ' ';
+		return next(empty, first, n, colon, i < limit && message.get(i) == ' ');
+	}
+
+	///update the state for a line: its first character, the length of the name before a colon or
+	///whitespace, whether a colon ends the name and whether a space does
+	private int next(boolean empty, char first, int nameLength, boolean colon, boolean spaceAfterName) {
+		boolean wasFirst = firstLine;
+		firstLine = false;
+		if(empty) {
+			inHeaders = false;								///end of the header block
+			field = BODY;
+		} else if(first == ' ' || first == '\t') {
+			if(wasFirst) {									///a body starting with indented text
+				inHeaders = false;
+				field = BODY;
+			}												///otherwise a continuation of the current header
+		} else if(wasFirst && !colon && spaceAfterName && is("from", nameLength)) {
+			field = FROM;									///mbox separator line "From sender date"
+		} else if(colon && nameLength > 0) {
+			field = fieldOf(nameLength);
+		} else {
+			inHeaders = false;								///not a header line, so no (more) headers
+			field = BODY;
+		}
+		return field;
+	}
+
+	private int fieldOf(int nameLength) {
+		if(is("subject", nameLength)) {
+			return SUBJECT;
+		}
+		if(is("from", nameLength) || is("sender", nameLength) || is("reply-to", nameLength) || is("return-path", nameLength)) {
+			return FROM;
+		}
+		return HEADER;
+	}
+
+	private boolean is(String header, int nameLength) {
+		if(nameLength != header.length()) {
+			return false;
+		}
+		for(int i = 0; i < nameLength; i++) {
+			if(name[i] != header.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
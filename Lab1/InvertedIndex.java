@@ -0,0 +1,349 @@
+import java.util.*;
+
+///Inverted index of the training corpus: for every token id the set of training messages containing it,
+///and for every message the token ids and counts it contributed (the forward index).
+///Posting lists are compressed like roaring bitmaps: a message id is split in its high and low 16 bits, and
+///the low bits belonging to one high key are kept in a sorted char array while there are at most 4096 of
+///them, or in a bitmap of 65536 bits beyond that. With the forward index a message is unlearned in time
+///proportional to its number of tokens, and the document frequency of every token per class is kept up to
+///date so it can be queried at any moment, for example for feature selection.
+public class InvertedIndex
+{
+	///an array container holds at most this many ids, more take less space as a bitmap
+	private static final int ARRAY_MAX = 4096;
+
+	///posting lists and document frequencies per class, by token id
+	private final ArrayList<Postings> postings = new ArrayList<Postings>();
+	private int[][] documentFrequency = new int[2][0];
+
+	///forward index by message id: class, distinct token ids and their counts (null once forgotten)
+	private byte[] messageType = new byte[0];
+	private final ArrayList<int[]> messageTokens = new ArrayList<int[]>();
+	private final ArrayList<int[]> messageCounts = new ArrayList<int[]>();
+	private final int[] nMessages = new int[2];
+
+	///tokens of the message being added: position[t] is the index of token t in currentTokens,
+	///valid if stamp[t] is the id of the current message + 1
+	private int current = -1;
+	private int[] position = new int[0];
+	private int[] stamp = new int[0];
+	private int[] currentTokens = new int[64];
+	private int[] currentCounts = new int[64];
+	private int nCurrent = 0;
+
+	///start adding a message of a class (0 regular, 1 spam); returns its message id
+	public int startMessage(int type) {
+		current = messageTokens.size();
+		if(current == messageType.length) {
+			messageType = Arrays.copyOf(messageType, Math.max(16, current * 2));
+		}
+		messageType[current] = (byte)type;
+		messageTokens.add(null);
+		messageCounts.add(null);
+		nCurrent = 0;
+		return current;
+	}
+
+	///record one occurrence of a token in the current message
+	public void add(int tokenId) {
+		if(tokenId >= stamp.length) {
+			int n = Math.max(tokenId + 1, stamp.length * 2);
+			stamp = Arrays.copyOf(stamp, n);
+			position = Arrays.copyOf(position, n);
+		}
+		if(stamp[tokenId] == current + 1) {
+			currentCounts[position[tokenId]]++;
+			return;
+		}
+		if(nCurrent == currentTokens.length) {
+			currentTokens = Arrays.copyOf(currentTokens, nCurrent * 2);
+			currentCounts = Arrays.copyOf(currentCounts, nCurrent * 2);
+		}
+		stamp[tokenId] = current + 1;
+		position[tokenId] = nCurrent;
+		currentTokens[nCurrent] = tokenId;
+		currentCounts[nCurrent] = 1;
+		nCurrent++;
+	}
+
+	///finish the current message and add it to the posting lists
+	public void endMessage() {
+		int type = messageType[current];
+		messageTokens.set(current, Arrays.copyOf(currentTokens, nCurrent));
+		messageCounts.set(current, Arrays.copyOf(currentCounts, nCurrent));
+		for(int k = 0; k < nCurrent; k++) {
+			int t = currentTokens[k];
+			while(postings.size() <= t) {
+				postings.add(null);
+			}
+			if(postings.get(t) == null) {
+				postings.set(t, new Postings());
+			}
+			postings.get(t).add(current);
+			if(t >= documentFrequency[type].length) {
+				int n = Math.max(t + 1, documentFrequency[type].length * 2);
+				documentFrequency[0] = Arrays.copyOf(documentFrequency[0], n);
+				documentFrequency[1] = Arrays.copyOf(documentFrequency[1], n);
+			}
+			documentFrequency[type][t]++;
+		}
+		nMessages[type]++;
+		current = -1;
+	}
+
+	///true if a message was added and not forgotten
+	public boolean contains(int messageId) {
+		return messageId >= 0 && messageId < messageTokens.size() && messageTokens.get(messageId) != null;
+	}
+
+	public int type(int messageId) {
+		return messageType[messageId];
+	}
+
+	///the distinct token ids of a message, and how often each occurred
+	public int[] tokens(int messageId) {
+		return messageTokens.get(messageId);
+	}
+
+	public int[] counts(int messageId) {
+		return messageCounts.get(messageId);
+	}
+
+	///remove a message from the posting lists and document frequencies; the caller subtracts its counts
+	public void forget(int messageId) {
+		int type = messageType[messageId];
+		for(int t : messageTokens.get(messageId)) {
+			postings.get(t).remove(messageId);
+			documentFrequency[type][t]--;
+		}
+		messageTokens.set(messageId, null);
+		messageCounts.set(messageId, null);
+		nMessages[type]--;
+	}
+
+	///number of messages of a class
+	public int messages(int type) {
+		return nMessages[type];
+	}
+
+	///number of messages of a class containing a token
+	public int documentFrequency(int tokenId, int type) {
+		return tokenId < documentFrequency[type].length ? documentFrequency[type][tokenId] : 0;
+	}
+
+	///ids of the messages containing a token, in increasing order
+	public int[] messagesWith(int tokenId) {
+		if(tokenId >= postings.size() || postings.get(tokenId) == null) {
+			return new int[0];
+		}
+		return postings.get(tokenId).toArray();
+	}
+
+	///mutual information in nats between the presence of a token in a message and the class of the message
+	public double mutualInformation(int tokenId) {
+		double n = nMessages[0] + nMessages[1];
+		double[][] cells = new double[2][2];			///[present][class]
+		for(int c = 0; c < 2; c++) {
+			cells[1][c] = documentFrequency(tokenId, c);
+			cells[0][c] = nMessages[c] - cells[1][c];
+		}
+		double mi = 0;
+		for(int p = 0; p < 2; p++) {
+			double present = cells[p][0] + cells[p][1];
+			for(int c = 0; c < 2; c++) {
+				if(cells[p][c] > 0) {
+					mi += cells[p][c] / n * Math.log(n * cells[p][c] / (present * nMessages[c]));
+				}
+			}
+		}
+		return mi;
+	}
+
+	///the k token ids with the highest mutual information with the class, best first
+	public int[] selectFeatures(int k) {
+		final double[] scores = new double[postings.size()];
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for(int t = 0; t < scores.length; t++) {
+			if(documentFrequency(t, 0) + documentFrequency(t, 1) > 0) {
+				scores[t] = mutualInformation(t);
+				ids.add(t);
+			}
+		}
+		Collections.sort(ids, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(scores[b], scores[a]);
+			}
+		});
+		int[] best = new int[Math.min(k, ids.size())];
+		for(int i = 0; i < best.length; i++) {
+			best[i] = ids.get(i);
+		}
+		return best;
+	}
+
+	///total number of (token, message) pairs in the posting lists
+	public long postings() {
+		long n = 0;
+		for(Postings p : postings) {
+			if(p != null) {
+				n += p.cardinality();
+			}
+		}
+		return n;
+	}
+
+	///approximate size of the posting lists in bytes
+	public long postingsBytes() {
+		long bytes = 0;
+		for(Postings p : postings) {
+			if(p != null) {
+				bytes += p.sizeBytes();
+			}
+		}
+		return bytes;
+	}
+
+	///set of message ids: sorted high keys, each with an array or bitmap container of low bits
+	private static class Postings
+	{
+		private int nContainers = 0;
+		private int[] keys = new int[1];
+		private int[] cardinality = new int[1];
+		private Object[] containers = new Object[1];		///char[] (sorted, first cardinality used) or long[1024]
+
+		void add(int id) {
+			int c = container(id >>> 16, true);
+			char low = (char)id;
+			if(containers[c] instanceof long[]) {
+				long[] bits = (long[])containers[c];
+				if((bits[low >>> 6] & (1L << low)) == 0) {
+					bits[low >>> 6] |= 1L << low;
+					cardinality[c]++;
+				}
+				return;
+			}
+			char[] array = (char[])containers[c];
+			int n = cardinality[c];
+			int i = Arrays.binarySearch(array, 0, n, low);
+			if(i >= 0) {
+				return;
+			}
+			i = -i - 1;
+			if(n == ARRAY_MAX) {								///full array: switch to a bitmap
+				long[] bits = new long[1024];
+				for(int k = 0; k < n; k++) {
+					bits[array[k] >>> 6] |= 1L << array[k];
+				}
+				bits[low >>> 6] |= 1L << low;
+				containers[c] = bits;
+				cardinality[c]++;
+				return;
+			}
+			if(n == array.length) {
+				array = Arrays.copyOf(array, Math.min(ARRAY_MAX, n * 2));
+				containers[c] = array;
+			}
+			System.arraycopy(array, i, array, i + 1, n - i);	///ids mostly arrive in order, so this moves little
+			array[i] = low;
+			cardinality[c]++;
+		}
+
+		void remove(int id) {
+			int c = container(id >>> 16, false);
+			if(c < 0) {
+				return;
+			}
+			char low = (char)id;
+			if(containers[c] instanceof long[]) {
+				long[] bits = (long[])containers[c];
+				if((bits[low >>> 6] & (1L << low)) != 0) {
+					bits[low >>> 6] &= ~(1L << low);
+					if(--cardinality[c] == ARRAY_MAX) {			///small enough for an array again
+						char[] array = new char[ARRAY_MAX];
+						int n = 0;
+						for(int v = 0; v < 65536; v++) {
+							if((bits[v >>> 6] & (1L << v)) != 0) {
+								array[n++] = (char)v;
+							}
+						}
+						containers[c] = array;
+					}
+				}
+			} else {
+				char[] array = (char[])containers[c];
+				int i = Arrays.binarySearch(array, 0, cardinality[c], low);
+				if(i >= 0) {
+					System.arraycopy(array, i + 1, array, i, cardinality[c] - i - 1);
+					cardinality[c]--;
+				}
+			}
+			if(cardinality[c] == 0) {							///drop the empty container
+				System.arraycopy(keys, c + 1, keys, c, nContainers - c - 1);
+				System.arraycopy(cardinality, c + 1, cardinality, c, nContainers - c - 1);
+				System.arraycopy(containers, c + 1, containers, c, nContainers - c - 1);
+				nContainers--;
+				containers[nContainers] = null;
+			}
+		}
+
+		///index of the container of a high key, created if asked for, or -1
+		private int container(int key, boolean create) {
+			int c = Arrays.binarySearch(keys, 0, nContainers, key);
+			if(c >= 0 || !create) {
+				return c >= 0 ? c : -1;
+			}
+			c = -c - 1;
+			if(nContainers == keys.length) {
+				keys = Arrays.copyOf(keys, nContainers * 2);
+				cardinality = Arrays.copyOf(cardinality, nContainers * 2);
+				containers = Arrays.copyOf(containers, nContainers * 2);
+			}
+			System.arraycopy(keys, c, keys, c + 1, nContainers - c);
+			System.arraycopy(cardinality, c, cardinality, c + 1, nContainers - c);
+			System.arraycopy(containers, c, containers, c + 1, nContainers - c);
+			keys[c] = key;
+			cardinality[c] = 0;
+			containers[c] = new char[4];
+			nContainers++;
+			return c;
+		}
+
+		int cardinality() {
+			int n = 0;
+			for(int c = 0; c < nContainers; c++) {
+				n += cardinality[c];
+			}
+			return n;
+		}
+
+		int[] toArray() {
+			int[] ids = new int[cardinality()];
+			int n = 0;
+			for(int c = 0; c < nContainers; c++) {
+				int high = keys[c] << 16;
+				if(containers[c] instanceof long[]) {
+					long[] bits = (long[])containers[c];
+					for(int w = 0; w < bits.length; w++) {
+						for(long word = bits[w]; word != 0; word &= word - 1) {
+							ids[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+						}
+					}
+				} else {
+					char[] array = (char[])containers[c];
+					for(int i = 0; i < cardinality[c]; i++) {
+						ids[n++] = high | array[i];
+					}
+				}
+			}
+			return ids;
+		}
+
+		long sizeBytes() {
+			long bytes = 16 + keys.length * 8L + containers.length * 4L;
+			for(int c = 0; c < nContainers; c++) {
+				bytes += 16 + (containers[c] instanceof long[] ? 8192 : ((char[])containers[c]).length * 2L);
+			}
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+import java.nio.*;
+
+///Library entry point for classifying messages that are already in memory (for example received by an
+///SMTP proxy), straight from a ByteBuffer (heap, direct or memory-mapped) or a byte[] slice.
+///The bytes are decoded as UTF-8 and tokenized in place with the same rules as Bayespam (split on
+///whitespace, lowercase, keep letters only, at least alpha letters); every token is hashed while it is
+///read, so no Strings or copies are made. Scoring uses a CompiledModel. With a reused ClassifyScratch a
+///call allocates nothing.
+///A model compiled with header fields (Bayespam -fields) is used with fields set: every token hash then
+///starts from the seed of the field of its line (HeaderFields), still without building strings.
+///Built on a QuantizedModel instead, only the quantized log-odds table is read while scoring.
+public class MessageClassifier
+{
+	private final CompiledModel model;
+	private final QuantizedModel quantized;
+	private final double logPriorRegular;
+	private final double logPriorSpam;
+	private final int alpha;
+	private final boolean fields;
+
+	public MessageClassifier(CompiledModel model, double logPriorRegular, double logPriorSpam, int alpha) {
+		this(model, logPriorRegular, logPriorSpam, alpha, false);
+	}
+
+	public MessageClassifier(CompiledModel model, double logPriorRegular, double logPriorSpam, int alpha, boolean fields) {
+		this(model, null, logPriorRegular, logPriorSpam, alpha, fields);
+	}
+
+	public MessageClassifier(QuantizedModel quantized, double logPriorRegular, double logPriorSpam, int alpha, boolean fields) {
+		this(null, quantized, logPriorRegular, logPriorSpam, alpha, fields);
+	}
+
+	private MessageClassifier(CompiledModel model, QuantizedModel quantized, double logPriorRegular, double logPriorSpam, int alpha, boolean fields) {
+		this.model = model;
+		this.quantized = quantized;
+		this.logPriorRegular = logPriorRegular;
+		this.logPriorSpam = logPriorSpam;
+		this.alpha = alpha;
+		this.fields = fields;
+	}
+
+	public int modelSize() {
+		return model != null ? model.size() : quantized.size();
+	}
+
+	///classify a byte[] slice
+	public Verdict classify(byte[] message, int offset, int length, ClassifyScratch scratch) {
+		return classify(wrap(message, offset, length, scratch), scratch);
+	}
+
+	///a buffer over a byte[] slice; the scratch keeps a buffer wrapping the last array, so a reused array
+	///is not wrapped again
+	static ByteBuffer wrap(byte[] message, int offset, int length, ClassifyScratch scratch) {
+		ByteBuffer buffer = scratch.wrapped;
+		if(buffer == null || buffer.array() != message) {
+			buffer = ByteBuffer.wrap(message);
+			scratch.wrapped = buffer;
+		}
+		buffer.clear();
+		buffer.limit(offset + length);
+		buffer.position(offset);
+		return buffer;
+	}
+
+	///classify the bytes between the position and the limit of a buffer (the position is not changed);
+	///returns the scratch's Verdict object
+	public Verdict classify(ByteBuffer message, ClassifyScratch scratch) {
+		int n = collectSlots(message, scratch);
+		Verdict verdict = scratch.verdict;
+		if(quantized != null) {							///integer sum, scaled once
+			long sum = 0;
+			for(int k = 0; k < n; k++) {
+				sum += quantized.quantizedLogOdds(scratch.slots[k]);
+			}
+			verdict.logOdds = logPriorSpam - logPriorRegular + sum * quantized.scale();
+			verdict.spam = verdict.logOdds >= 0;
+			return verdict;
+		}
+		double log_regular = logPriorRegular;
+		double log_spam = logPriorSpam;
+		int[] slots = scratch.slots;
+		for(int k = 0; k < n; k++) {
+			log_regular += model.logProbGivenRegular(slots[k]);
+			log_spam += model.logProbGivenSpam(slots[k]);
+		}
+
+		verdict.logOdds = log_spam - log_regular;
+		verdict.spam = verdict.logOdds >= 0;
+		return verdict;
+	}
+
+	///tokenize a message and put the model slots of its distinct known tokens in scratch.slots, in order of
+	///first occurrence; returns their number
+	int collectSlots(ByteBuffer message, ClassifyScratch scratch) {
+		scratch.ensureCapacity(modelSize());
+		scratch.nextMessage();
+		int n = 0;
+
+		long seed = TokenHash.SEED;
+		long h = seed;
+		int letters = 0;
+		int i = message.position();
+		int limit = message.limit();
+		HeaderFields headerFields = scratch.headerFields;
+		headerFields.startMessage();
+		boolean lineStart = fields;
+		while(i <= limit) {
+			if(lineStart) {									///the previous token ended with the line, so h is fresh
+				seed = HeaderFields.seed(headerFields.line(message, i, limit));
+				h = seed;
+				lineStart = false;
+			}
+			int c;
+			if(i == limit) {
+				c = ' ';									///end of the message ends the last token
+				i++;
+			} else {
+				///decode one UTF-8 sequence, malformed input becomes U+FFFD (not a letter)
+				int b = message.get(i++) & 0xff;
+				int more;
+				if(b < 0x80) {
+					c = b;
+					more = 0;
+				} else if((b >> 5) == 6) {
+					c = b & 0x1f;
+					more = 1;
+				} else if((b >> 4) == 14) {
+					c = b & 0x0f;
+					more = 2;
+				} else if((b >> 3) == 30) {
+					c = b & 0x07;
+					more = 3;
+				} else {
+					c = 0xfffd;
+					more = 0;
+				}
+				for(; more > 0; more--) {
+					if(i == limit || (message.get(i) & 0xc0) != 0x80) {
+						c = 0xfffd;
+						break;
+					}
+					c = (c << 6) | (message.get(i++) & 0x3f);
+				}
+			}
+
+			if(c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+				if(letters >= alpha) {
+					long hash = TokenHash.finish(h);
+					int slot = quantized != null ? quantized.lookup(hash) : model.lookup(hash);
+					if(slot >= 0 && scratch.markSeen(slot)) {
+						if(n == scratch.slots.length) {
+							scratch.slots = java.util.Arrays.copyOf(scratch.slots, n * 2);
+						}
+						scratch.slots[n++] = slot;
+					}
+				}
+				h = seed;
+				letters = 0;
+				///a line ends at \n, \r\n or a bare \r, as in BufferedReader.readLine
+				lineStart = fields && (c == '\n' || (c == '\r' && (i >= limit || message.get(i) != '\n')));
+			} else if(c <= 0xffff) {						///like Bayespam.cleanWord, supplementary characters are dropped
+				char ch = (char)c;
+				if(Character.isUpperCase(ch)) {
+					ch = Character.toLowerCase(ch);
+				}
+				if(Character.isLetter(ch)) {
+					h = TokenHash.step(h, ch);
+					letters++;
+				}
+			}
+		}
+		return n;
+	}
+}
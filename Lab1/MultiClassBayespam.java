@@ -0,0 +1,211 @@
+import java.io.*;
+import java.util.*;
+
+///Naive Bayes classifier for any number of classes (for example spam, phishing, newsletters and personal).
+///The training and testing directories contain one subdirectory per class, named after the class.
+///Every word of the vocabulary maps to one row of K log-probabilities stored contiguously, so a message
+///is scored for all classes with a single lookup per word.
+public class MultiClassBayespam
+{
+	///parameter defines the default minimum probability
+	private static double epsilon = 0.001;
+
+	///names of the classes (the subdirectory names), sorted
+	private static String[] classNames = new String[0];
+	private static int nClasses = 0;
+
+	///log prior probability of each class
+	private static double[] logPriors;
+
+	///vocabulary: word -> row, row r holds the values of class c at index r * nClasses + c
+	private static Hashtable<String, Integer> vocab = new Hashtable<String, Integer>();
+	private static int[] counts = new int[0];
+	private static double[] logProbs = new double[0];
+
+	///list the class subdirectories of a directory, in the order of classNames
+	private static File[][] listClasses(File dir_location) {
+		File[] dir_listing = dir_location.listFiles();
+		Arrays.sort(dir_listing);
+		ArrayList<File> dirs = new ArrayList<File>();
+		for(File f : dir_listing) {
+			if(f.isDirectory()) {
+				dirs.add(f);
+			}
+		}
+
+		if(nClasses == 0) {										///the training directory defines the classes
+			nClasses = dirs.size();
+			classNames = new String[nClasses];
+			for(int c = 0; c < nClasses; c++) {
+				classNames[c] = dirs.get(c).getName();
+			}
+		}
+
+		File[][] listing = new File[nClasses][];
+		for(int c = 0; c < nClasses; c++) {
+			listing[c] = new File[0];
+			for(File d : dirs) {
+				if(d.getName().equals(classNames[c])) {
+					listing[c] = d.listFiles();
+				}
+			}
+		}
+		return listing;
+	}
+
+	///read the cleaned words of a message into a collection (a set keeps every word once)
+	private static void readWords(File message, Collection<String> words)
+	throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(message)));
+		String line;
+		while((line = in.readLine()) != null) {
+			StringTokenizer st = new StringTokenizer(line);
+			while(st.hasMoreTokens()) {
+				String word = Bayespam.cleanWord(st.nextToken());
+				if(word.length() > 0) {
+					words.add(word);
+				}
+			}
+		}
+		in.close();
+	}
+
+	///add one occurrence of a word to the counts of a class
+	private static void addWord(String word, int c) {
+		Integer row = vocab.get(word);
+		if(row == null) {
+			row = vocab.size();
+			vocab.put(word, row);
+			if((row + 1) * nClasses > counts.length) {
+				counts = Arrays.copyOf(counts, Math.max((row + 1) * nClasses, counts.length * 2));
+			}
+		}
+		counts[row * nClasses + c]++;
+	}
+
+	///read the training messages of every class and compute priors and class conditional probabilities
+	private static void train(File[][] listing)
+	throws IOException
+	{
+		int nMessages = 0;
+		for(int c = 0; c < nClasses; c++) {
+			nMessages += listing[c].length;
+			for(File message : listing[c]) {
+				ArrayList<String> words = new ArrayList<String>();
+				readWords(message, words);
+				for(String w : words) {
+					addWord(w, c);
+				}
+			}
+		}
+
+		logPriors = new double[nClasses];
+		for(int c = 0; c < nClasses; c++) {
+			logPriors[c] = Math.log((double)listing[c].length / nMessages);
+		}
+
+		///total word count per class
+		int rows = vocab.size();
+		long[] nWords = new long[nClasses];
+		long nWordsTotal = 0;
+		for(int r = 0; r < rows; r++) {
+			for(int c = 0; c < nClasses; c++) {
+				nWords[c] += counts[r * nClasses + c];
+			}
+		}
+		for(int c = 0; c < nClasses; c++) {
+			nWordsTotal += nWords[c];
+		}
+
+		///give each word its conditional probabilities, zero probabilities get the default minimum
+		double minimum = Math.log(epsilon / nWordsTotal);
+		logProbs = new double[rows * nClasses];
+		for(int r = 0; r < rows; r++) {
+			for(int c = 0; c < nClasses; c++) {
+				int count = counts[r * nClasses + c];
+				logProbs[r * nClasses + c] = count == 0 ? minimum : Math.log((double)count / nWords[c]);
+			}
+		}
+	}
+
+	///return the index of the most probable class of a message
+	private static int classify(File message, double[] scores)
+	throws IOException
+	{
+		HashSet<String> words = new HashSet<String>();
+		readWords(message, words);
+
+		System.arraycopy(logPriors, 0, scores, 0, nClasses);
+		for(String w : words) {
+			Integer row = vocab.get(w);
+			if(row != null) {
+				///one lookup gives the row with the evidence for all classes
+				int base = row * nClasses;
+				for(int c = 0; c < nClasses; c++) {
+					scores[c] += logProbs[base + c];
+				}
+			}
+		}
+
+		///argmax with conditional moves instead of branches
+		int best = 0;
+		double bestScore = scores[0];
+		for(int c = 1; c < nClasses; c++) {
+			double s = scores[c];
+			best = s > bestScore ? c : best;
+			bestScore = Math.max(s, bestScore);
+		}
+		return best;
+	}
+
+	///classify the test messages and print the confusion matrix
+	private static void test(File[][] listing)
+	throws IOException
+	{
+		int[][] confusion = new int[nClasses][nClasses];
+		double[] scores = new double[nClasses];
+		int correct = 0;
+		int total = 0;
+		for(int c = 0; c < nClasses; c++) {
+			for(File message : listing[c]) {
+				int predicted = classify(message, scores);
+				confusion[c][predicted]++;
+				if(predicted == c) {
+					correct++;
+				}
+				total++;
+			}
+		}
+
+		System.out.println("Confusion matrix (rows: true class, columns: predicted class)");
+		for(int c = 0; c < nClasses; c++) {
+			System.out.print(classNames[c] + ":");
+			for(int p = 0; p < nClasses; p++) {
+				System.out.print(" " + confusion[c][p]);
+			}
+			System.out.println();
+		}
+		System.out.print("Overall Accuracy: ");
+		System.out.println((double)correct / total);
+	}
+
+	public static void main(String[] args)
+	throws IOException
+	{
+		if(args.length < 2 || !new File(args[0]).isDirectory() || !new File(args[1]).isDirectory()) {
+			System.out.println( "- Error: usage: java MultiClassBayespam <train dir> <test dir>, each with one subdirectory per class\n" );
+			Runtime.getRuntime().exit(0);
+		}
+
+		File[][] trainListing = listClasses(new File(args[0]));
+		if(nClasses < 2) {
+			System.out.println( "- Error: the training directory should contain at least 2 class subdirectories\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		train(trainListing);
+		System.out.println("Classes: " + Arrays.toString(classNames) + ", vocabulary: " + vocab.size() + " words");
+
+		test(listClasses(new File(args[1])));
+	}
+}
@@ -0,0 +1,171 @@
+import java.util.*;
+
+///Index of recently classified messages for finding near-duplicates (campaign variants that differ
+///in a few random tokens). Every message gets a MinHash signature over its set of tokens, which is
+///split into bands for locality sensitive hashing: two messages that agree on all rows of any band
+///are candidates, and the fraction of equal signature values estimates their Jaccard similarity.
+///Only a fixed number of recent messages is kept, older ones are overwritten in a ring.
+public class NearDuplicateIndex
+{
+	private static final int BANDS = 16;
+	private static final int ROWS = 4;
+	private static final int SIGNATURE_LENGTH = BANDS * ROWS;
+
+	///one seed per signature position, fixed so signatures are reproducible
+	private static final long[] SEEDS = new long[SIGNATURE_LENGTH];
+	static {
+		long s = 0x2545f4914f6cdd1dL;
+		for(int i = 0; i < SIGNATURE_LENGTH; i++) {
+			s = TokenHash.finish(s + 0x9e3779b97f4a7c15L);
+			SEEDS[i] = s;
+		}
+	}
+
+	private final int capacity;
+	private final double minSimilarity;
+	private final double minConfidence;
+
+	///ring of recent messages: signature, band keys and the log-odds they were classified with
+	private final long[][] signatures;
+	private final long[][] bandKeys;
+	private final double[] logOdds;
+	private int next = 0;
+	private int stored = 0;
+
+	///one table per band, from band key to the most recent ring slot with that key
+	private final ArrayList<HashMap<Long, Integer>> bands = new ArrayList<HashMap<Long, Integer>>();
+
+	private int modelVersion = -1;
+	private long queries = 0;
+	private long resolved = 0;
+
+	///capacity: number of recent messages kept; minSimilarity: estimated Jaccard similarity needed to reuse
+	///a verdict; minConfidence: absolute log-odds the earlier verdict must have had
+	public NearDuplicateIndex(int capacity, double minSimilarity, double minConfidence) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive, not " + capacity);
+		}
+		this.capacity = capacity;
+		this.minSimilarity = minSimilarity;
+		this.minConfidence = minConfidence;
+		signatures = new long[capacity][];
+		bandKeys = new long[capacity][];
+		logOdds = new double[capacity];
+		for(int b = 0; b < BANDS; b++) {
+			bands.add(new HashMap<Long, Integer>());
+		}
+	}
+
+	///MinHash signature of a set of tokens
+	public static long[] signature(Collection<String> tokens) {
+		long[] sig = new long[SIGNATURE_LENGTH];
+		Arrays.fill(sig, Long.MAX_VALUE);
+		for(String token : tokens) {
+			long h = TokenHash.hash(token);
+			for(int i = 0; i < SIGNATURE_LENGTH; i++) {
+				long v = TokenHash.finish(h ^ SEEDS[i]);
+				if(v < sig[i]) {
+					sig[i] = v;
+				}
+			}
+		}
+		return sig;
+	}
+
+	///return the log-odds of a confidently classified near-duplicate, or null if there is none;
+	///a different model version empties the index
+	public Double lookup(long[] sig, int version) {
+		if(version != modelVersion) {
+			clear();
+			modelVersion = version;
+		}
+		queries++;
+		int best = -1;
+		double bestSimilarity = minSimilarity;
+		for(int b = 0; b < BANDS; b++) {
+			Integer slot = bands.get(b).get(bandKey(sig, b));
+			if(slot == null || Math.abs(logOdds[slot]) < minConfidence) {
+				continue;
+			}
+			double similarity = similarity(sig, signatures[slot]);
+			if(similarity >= bestSimilarity) {
+				bestSimilarity = similarity;
+				best = slot;
+			}
+		}
+		if(best < 0) {
+			return null;
+		}
+		resolved++;
+		return logOdds[best];
+	}
+
+	///remember a classified message, overwriting the oldest one when the index is full
+	public void add(long[] sig, int version, double score) {
+		if(version != modelVersion) {
+			return;
+		}
+		int slot = next;
+		next = (next + 1) % capacity;
+		if(signatures[slot] != null) {
+			for(int b = 0; b < BANDS; b++) {
+				Long key = bandKeys[slot][b];
+				Integer current = bands.get(b).get(key);
+				if(current != null && current == slot) {
+					bands.get(b).remove(key);
+				}
+			}
+		} else {
+			stored++;
+		}
+		long[] keys = new long[BANDS];
+		for(int b = 0; b < BANDS; b++) {
+			keys[b] = bandKey(sig, b);
+			bands.get(b).put(keys[b], slot);
+		}
+		signatures[slot] = sig;
+		bandKeys[slot] = keys;
+		logOdds[slot] = score;
+	}
+
+	public long queries() {
+		return queries;
+	}
+
+	///fraction of lookups answered from a near-duplicate
+	public double resolvedFraction() {
+		return queries == 0 ? 0 : (double)resolved / queries;
+	}
+
+	public int size() {
+		return stored;
+	}
+
+	private void clear() {
+		Arrays.fill(signatures, null);
+		Arrays.fill(bandKeys, null);
+		for(HashMap<Long, Integer> band : bands) {
+			band.clear();
+		}
+		next = 0;
+		stored = 0;
+	}
+
+	private static long bandKey(long[] sig, int band) {
+		long h = band;
+		for(int r = 0; r < ROWS; r++) {
+			h = TokenHash.finish(h ^ sig[band * ROWS + r]);
+		}
+		return h;
+	}
+
+	private static double similarity(long[] a, long[] b) {
+		int equal = 0;
+		for(int i = 0; i < SIGNATURE_LENGTH; i++) {
+			if(a[i] == b[i]) {
+				equal++;
+			}
+		}
+		return (double)equal / SIGNATURE_LENGTH;
+	}
+}
@@ -0,0 +1,302 @@
+import java.nio.*;
+import java.util.*;
+
+///Vocabulary store that keeps keys, counts and log-probabilities outside the java heap.
+///Keys are stored as UTF-8 bytes in an arena of direct buffers, the index is an open-addressing table
+///of entry ids and the per-entry values live in direct buffers, so the garbage collector never has to
+///scan the vocabulary and its size is not limited by -Xmx (only by -XX:MaxDirectMemorySize).
+///Class index 0 is regular and 1 is spam, matching MessageType.ordinal() in Bayespam and BigramBayespam.
+public class OffHeapVocab
+{
+	///size of one arena chunk, keys never cross a chunk boundary
+	private static final int CHUNK_BITS = 24;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	///bytes per entry: key reference (8), hash (4), two counts (4 + 4), two log-probabilities (8 + 8)
+	private static final int ENTRY_BYTES = 36;
+	private static final int KEY_REF = 0;
+	private static final int HASH = 8;
+	private static final int COUNT_REGULAR = 12;
+	private static final int COUNT_SPAM = 16;
+	private static final int LOG_PROB_REGULAR = 20;
+	private static final int LOG_PROB_SPAM = 28;
+
+	///arena chunks holding [length (2 bytes)][utf-8 bytes] for every key
+	private ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private ByteBuffer currentChunk;
+
+	///entry values in segments of 2^SEGMENT_BITS entries, so byte offsets stay far below 2^31 however
+	///many entries there are: entry i is in segment i >>> SEGMENT_BITS at (i & SEGMENT_MASK) * ENTRY_BYTES.
+	///Only the first segment starts small and grows, the others are allocated at full size.
+	private static final int SEGMENT_BITS = 20;
+	private static final int SEGMENT_ENTRIES = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_ENTRIES - 1;
+	private ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private int size = 0;
+
+	///largest index capacity, 2^28 slots of 4 bytes (a load factor below one half allows 2^27 entries)
+	private static final int MAX_INDEX_CAPACITY = 1 << 28;
+
+	///open-addressing index of entry ids (stored as id + 1, 0 means empty), capacity is a power of two
+	private IntBuffer index;
+	private int mask;
+
+	///reusable buffer for encoding lookup keys, so lookups do not allocate
+	private byte[] keyBytes = new byte[64];
+	private int keyLength;
+
+	public OffHeapVocab() {
+		this(1 << 16);
+	}
+
+	public OffHeapVocab(int expectedSize) {
+		int capacity = 16;
+		while(capacity < MAX_INDEX_CAPACITY && capacity < 2L * expectedSize) {
+			capacity <<= 1;
+		}
+		index = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		mask = capacity - 1;
+		segments.add(ByteBuffer.allocateDirect(Math.min(Math.max(16, expectedSize), SEGMENT_ENTRIES) * ENTRY_BYTES).order(ByteOrder.nativeOrder()));
+		newChunk();
+	}
+
+	///number of distinct keys in the vocabulary
+	public int size() {
+		return size;
+	}
+
+	///increase the counter of the given class for a word, adding the word if needed, and return its id
+	public int add(String word, int type) {
+		return add(word, type, 1);
+	}
+
+	///increase the counter of the given class for a word by n
+	public int add(String word, int type, int n) {
+		int id = findOrInsert(word);
+		ByteBuffer segment = segment(id);
+		int offset = offset(id) + (type == 0 ? COUNT_REGULAR : COUNT_SPAM);
+		segment.putInt(offset, segment.getInt(offset) + n);
+		return id;
+	}
+
+	///return the id of a word, or -1 if it is not in the vocabulary
+	public int find(String word) {
+		encode(word);
+		int hash = hashKey();
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int id = index.get(slot) - 1;
+			if(id < 0) {
+				return -1;
+			}
+			if(segment(id).getInt(offset(id) + HASH) == hash && keyEquals(id)) {
+				return id;
+			}
+		}
+	}
+
+	public int getCount(int id, int type) {
+		return segment(id).getInt(offset(id) + (type == 0 ? COUNT_REGULAR : COUNT_SPAM));
+	}
+
+	public void setLogProbs(int id, double logProbGivenRegular, double logProbGivenSpam) {
+		segment(id).putDouble(offset(id) + LOG_PROB_REGULAR, logProbGivenRegular);
+		segment(id).putDouble(offset(id) + LOG_PROB_SPAM, logProbGivenSpam);
+	}
+
+	public double logProbGivenRegular(int id) {
+		return segment(id).getDouble(offset(id) + LOG_PROB_REGULAR);
+	}
+
+	public double logProbGivenSpam(int id) {
+		return segment(id).getDouble(offset(id) + LOG_PROB_SPAM);
+	}
+
+	///decode the key of an entry (allocates, only meant for printing)
+	public String word(int id) {
+		long ref = segment(id).getLong(offset(id) + KEY_REF);
+		ByteBuffer chunk = chunks.get((int)(ref >>> CHUNK_BITS));
+		int offset = (int)(ref & (CHUNK_SIZE - 1));
+		int length = chunk.getShort(offset) & 0xffff;
+		byte[] b = new byte[length];
+		for(int i = 0; i < length; i++) {
+			b[i] = chunk.get(offset + 2 + i);
+		}
+		return new String(b, java.nio.charset.StandardCharsets.UTF_8);
+	}
+
+	///remove all words whose total count is below the minimum by rebuilding the store without them
+	public void retainMinTotal(int minTotal) {
+		OffHeapVocab kept = new OffHeapVocab(size);
+		for(int id = 0; id < size; id++) {
+			int regular = getCount(id, 0);
+			int spam = getCount(id, 1);
+			if(regular + spam >= minTotal) {
+				int newId = kept.findOrInsert(word(id));
+				kept.segment(newId).putInt(offset(newId) + COUNT_REGULAR, regular);
+				kept.segment(newId).putInt(offset(newId) + COUNT_SPAM, spam);
+				kept.setLogProbs(newId, logProbGivenRegular(id), logProbGivenSpam(id));
+			}
+		}
+		chunks = kept.chunks;
+		currentChunk = kept.currentChunk;
+		segments = kept.segments;
+		size = kept.size;
+		index = kept.index;
+		mask = kept.mask;
+	}
+
+	///total number of bytes allocated outside the heap
+	public long offHeapBytes() {
+		long bytes = (long)chunks.size() * CHUNK_SIZE + (long)index.capacity() * 4;
+		for(ByteBuffer segment : segments) {
+			bytes += segment.capacity();
+		}
+		return bytes;
+	}
+
+	///the segment holding an entry
+	private ByteBuffer segment(int id) {
+		return segments.get(id >>> SEGMENT_BITS);
+	}
+
+	///byte offset of an entry in its segment
+	private static int offset(int id) {
+		return (id & SEGMENT_MASK) * ENTRY_BYTES;
+	}
+
+	private int findOrInsert(String word) {
+		encode(word);
+		int hash = hashKey();
+		int slot = hash & mask;
+		for(; ; slot = (slot + 1) & mask) {
+			int id = index.get(slot) - 1;
+			if(id < 0) {
+				break;
+			}
+			if(segment(id).getInt(offset(id) + HASH) == hash && keyEquals(id)) {
+				return id;
+			}
+		}
+
+		///the word is new: make room for its entry at the end of the entry buffer first, so a full table
+		///leaves the arena unchanged, then store its key in the arena
+		if(2L * (size + 1) > MAX_INDEX_CAPACITY) {
+			throw new IllegalStateException("off-heap vocabulary full: " + size + " entries");
+		}
+		int id = size;
+		int s = id >>> SEGMENT_BITS;
+		if(s == segments.size()) {						///a new segment, at full size
+			segments.add(ByteBuffer.allocateDirect(SEGMENT_ENTRIES * ENTRY_BYTES).order(ByteOrder.nativeOrder()));
+		} else if(offset(id) + ENTRY_BYTES > segments.get(s).capacity()) {
+			///only the first segment can be short: double it, at most to full size
+			ByteBuffer entries = segments.get(s);
+			int capacity = Math.min(entries.capacity() / ENTRY_BYTES * 2, SEGMENT_ENTRIES) * ENTRY_BYTES;
+			ByteBuffer grown = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+			entries.clear();
+			grown.put(entries);
+			grown.clear();
+			segments.set(s, grown);
+		}
+		if(keyLength + 2 > currentChunk.remaining()) {
+			newChunk();
+		}
+		long ref = ((long)(chunks.size() - 1) << CHUNK_BITS) | currentChunk.position();
+		currentChunk.putShort((short)keyLength);
+		currentChunk.put(keyBytes, 0, keyLength);
+		size++;
+		segment(id).putLong(offset(id) + KEY_REF, ref);
+		segment(id).putInt(offset(id) + HASH, hash);
+		segment(id).putInt(offset(id) + COUNT_REGULAR, 0);
+		segment(id).putInt(offset(id) + COUNT_SPAM, 0);
+		segment(id).putDouble(offset(id) + LOG_PROB_REGULAR, 0);
+		segment(id).putDouble(offset(id) + LOG_PROB_SPAM, 0);
+		index.put(slot, id + 1);
+
+		///keep the load factor of the index below one half
+		if(size * 2 > mask + 1) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		int capacity = (mask + 1) * 2;
+		IntBuffer grown = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		int newMask = capacity - 1;
+		for(int id = 0; id < size; id++) {
+			int slot = segment(id).getInt(offset(id) + HASH) & newMask;
+			while(grown.get(slot) != 0) {
+				slot = (slot + 1) & newMask;
+			}
+			grown.put(slot, id + 1);
+		}
+		index = grown;
+		mask = newMask;
+	}
+
+	private void newChunk() {
+		currentChunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		chunks.add(currentChunk);
+	}
+
+	///compare the encoded lookup key with the key of an entry
+	private boolean keyEquals(int id) {
+		long ref = segment(id).getLong(offset(id) + KEY_REF);
+		ByteBuffer chunk = chunks.get((int)(ref >>> CHUNK_BITS));
+		int offset = (int)(ref & (CHUNK_SIZE - 1));
+		if((chunk.getShort(offset) & 0xffff) != keyLength) {
+			return false;
+		}
+		for(int i = 0; i < keyLength; i++) {
+			if(chunk.get(offset + 2 + i) != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	///FNV-1a over the encoded key, with a final mix so the low bits can be used as a slot
+	private int hashKey() {
+		int h = 0x811c9dc5;
+		for(int i = 0; i < keyLength; i++) {
+			h = (h ^ (keyBytes[i] & 0xff)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	///encode a word as UTF-8 into the reusable key buffer
+	private void encode(String word) {
+		if(keyBytes.length < word.length() * 4) {
+			keyBytes = new byte[word.length() * 4];
+		}
+		int n = 0;
+		for(int i = 0; i < word.length(); i++) {
+			int c = word.charAt(i);
+			if(Character.isHighSurrogate((char)c) && i + 1 < word.length() && Character.isLowSurrogate(word.charAt(i + 1))) {
+				c = Character.toCodePoint((char)c, word.charAt(++i));
+			}
+			if(c < 0x80) {
+				keyBytes[n++] = (byte)c;
+			} else if(c < 0x800) {
+				keyBytes[n++] = (byte)(0xc0 | (c >> 6));
+				keyBytes[n++] = (byte)(0x80 | (c & 0x3f));
+			} else if(c < 0x10000) {
+				keyBytes[n++] = (byte)(0xe0 | (c >> 12));
+				keyBytes[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				keyBytes[n++] = (byte)(0x80 | (c & 0x3f));
+			} else {
+				keyBytes[n++] = (byte)(0xf0 | (c >> 18));
+				keyBytes[n++] = (byte)(0x80 | ((c >> 12) & 0x3f));
+				keyBytes[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				keyBytes[n++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+		if(n > 0xffff) {
+			throw new IllegalArgumentException("word too long for the off-heap vocabulary: " + n + " bytes");
+		}
+		keyLength = n;
+	}
+}
@@ -0,0 +1,86 @@
+///Compact scoring model with a single quantized log-odds value (log P(token|spam) - log P(token|regular))
+///per token, stored as 8 or 16-bit fixed point with one scale for the whole model. It uses the minimal
+///perfect hash index of a CompiledModel, so the payload per token drops from two doubles (16 bytes) to
+///1 or 2 bytes and the hot part of the model fits in cache. Scores are summed as integers and scaled once.
+public class QuantizedModel
+{
+	private final int[] displacement;
+	private final short[] fingerprint;
+	private final int nBuckets;
+	private final int size;
+	private final int bits;
+
+	///quantized values, only one of the two arrays is used depending on the number of bits
+	private byte[] values8;
+	private short[] values16;
+
+	///log-odds value of one quantization step
+	private final double scale;
+
+	QuantizedModel(int[] displacement, short[] fingerprint, int nBuckets, double[] logOdds, int bits) {
+		if(bits != 8 && bits != 16) {
+			throw new IllegalArgumentException("quantization must use 8 or 16 bits, not " + bits);
+		}
+		this.displacement = displacement;
+		this.fingerprint = fingerprint;
+		this.nBuckets = nBuckets;
+		this.size = logOdds.length;
+		this.bits = bits;
+
+		///the largest absolute log-odds maps onto the largest representable value
+		double maxAbs = 0;
+		for(double v : logOdds) {
+			maxAbs = Math.max(maxAbs, Math.abs(v));
+		}
+		int maxLevel = bits == 8 ? Byte.MAX_VALUE : Short.MAX_VALUE;
+		scale = maxAbs == 0 ? 1 : maxAbs / maxLevel;
+
+		if(bits == 8) {
+			values8 = new byte[size];
+			for(int i = 0; i < size; i++) {
+				values8[i] = (byte)Math.round(logOdds[i] / scale);
+			}
+		} else {
+			values16 = new short[size];
+			for(int i = 0; i < size; i++) {
+				values16[i] = (short)Math.round(logOdds[i] / scale);
+			}
+		}
+	}
+
+	///slot of a token, or -1 if the token is not in the model
+	public int lookup(String word) {
+		return lookup(TokenHash.hash(word));
+	}
+
+	///slot of a token hash, or -1 if the token is not in the model
+	public int lookup(long hash) {
+		if(size == 0) {
+			return -1;
+		}
+		return CompiledModel.lookup(hash, displacement, fingerprint, nBuckets, size);
+	}
+
+	///quantized log-odds of a slot, multiply a sum of these by scale() to get log-odds
+	public int quantizedLogOdds(int slot) {
+		return bits == 8 ? values8[slot] : values16[slot];
+	}
+
+	public double scale() {
+		return scale;
+	}
+
+	///number of tokens in the model
+	public int size() {
+		return size;
+	}
+
+	public int bits() {
+		return bits;
+	}
+
+	///bytes per token for the quantized values
+	public int payloadBytes() {
+		return bits / 8;
+	}
+}
@@ -0,0 +1,40 @@
+import java.util.*;
+
+///Uniform random sample of fixed size from a stream of unknown length, in one pass (algorithm R):
+///the first capacity items are kept, after that item number i (counting from 1) replaces a random kept
+///item with probability capacity / i. Memory is bounded by the capacity however long the stream is.
+public class ReservoirSampler<T>
+{
+	private final int capacity;
+	private final Random random;
+	private final ArrayList<T> items;
+	private long seen = 0;
+
+	public ReservoirSampler(int capacity, Random random) {
+		this.capacity = capacity;
+		this.random = random;
+		items = new ArrayList<T>(Math.min(capacity, 1 << 16));
+	}
+
+	public void add(T item) {
+		seen++;
+		if(items.size() < capacity) {
+			items.add(item);
+			return;
+		}
+		long j = (long)(random.nextDouble() * seen);
+		if(j < capacity) {
+			items.set((int)j, item);
+		}
+	}
+
+	///the sampled items
+	public ArrayList<T> items() {
+		return items;
+	}
+
+	///number of items offered so far
+	public long seen() {
+		return seen;
+	}
+}
@@ -0,0 +1,156 @@
+import java.io.*;
+import java.time.*;
+import java.util.*;
+
+///Keeps track of which counts were learned in which epoch (for example one day), for a ring of the last
+///N epochs. The classifier adds every count to its vocabulary and to the current bucket; when the ring
+///is full, advancing to a new epoch hands back the oldest bucket so its counts can be subtracted again.
+///The vocabulary then only holds what was seen in the last N epochs, and stays bounded during
+///continuous learning instead of growing forever with dead campaign tokens.
+public class RollingWindow
+{
+	private final int nBuckets;
+
+	///counts per token and class learned in each epoch of the ring, and the number of messages per class
+	private final ArrayList<HashMap<String, int[]>> buckets = new ArrayList<HashMap<String, int[]>>();
+	private final long[][] messages;
+	private int current = 0;
+	private int used = 1;
+
+	///epoch of the current bucket
+	private long epoch = Long.MIN_VALUE;
+
+	public RollingWindow(int nBuckets) {
+		this.nBuckets = nBuckets;
+		messages = new long[nBuckets][2];
+		for(int b = 0; b < nBuckets; b++) {
+			buckets.add(new HashMap<String, int[]>());
+		}
+	}
+
+	///record a count for a token and class (0 regular, 1 spam) in the current epoch
+	public void add(String token, int type) {
+		HashMap<String, int[]> bucket = buckets.get(current);
+		int[] counts = bucket.get(token);
+		if(counts == null) {
+			counts = new int[2];
+			bucket.put(token, counts);
+		}
+		counts[type]++;
+	}
+
+	///record a message of a class in the current epoch
+	public void addMessage(int type) {
+		messages[current][type]++;
+	}
+
+	public long epoch() {
+		return epoch;
+	}
+
+	///move forward to a later epoch; returns the buckets that fall out of the window, oldest first,
+	///whose counts are to be subtracted by the caller
+	public ArrayList<Expired> advanceTo(long newEpoch) {
+		ArrayList<Expired> expired = new ArrayList<Expired>();
+		if(epoch == Long.MIN_VALUE) {
+			epoch = newEpoch;
+			return expired;
+		}
+		///after nBuckets steps every old bucket is gone, so a long gap does not need one step per epoch
+		for(int step = 0; epoch < newEpoch; step++) {
+			epoch = step < nBuckets ? epoch + 1 : newEpoch;
+			current = (current + 1) % nBuckets;
+			if(used < nBuckets) {
+				used++;
+				continue;
+			}
+			expired.add(new Expired(buckets.get(current), messages[current][0], messages[current][1]));
+			buckets.set(current, new HashMap<String, int[]>());
+			messages[current] = new long[2];
+		}
+		return expired;
+	}
+
+	///counts that left the window
+	public static class Expired
+	{
+		public final HashMap<String, int[]> counts;
+		public final long messagesRegular;
+		public final long messagesSpam;
+
+		Expired(HashMap<String, int[]> counts, long messagesRegular, long messagesSpam) {
+			this.counts = counts;
+			this.messagesRegular = messagesRegular;
+			this.messagesSpam = messagesSpam;
+		}
+	}
+
+	private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+
+	///time of a message in milliseconds from the Date: header or the mbox "From " line, or Long.MIN_VALUE
+	///if there is none (file modification times say nothing about copied corpora)
+	public static long messageTime(File message)
+	throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(message)));
+		String line;
+		long time = Long.MIN_VALUE;
+		try {
+			while((line = in.readLine()) != null && line.length() > 0) {
+				if(line.regionMatches(true, 0, "Date:", 0, 5)) {
+					time = parseDate(line.substring(5));
+					break;
+				}
+				if(line.startsWith("From ") && time == Long.MIN_VALUE) {
+					time = parseDate(line.substring(5));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return time;
+	}
+
+	///lenient parser for dates like "Tue, 28 Oct 2003 11:11:04 +0100 (MET)", "Thu, 16 Oct 2003 14:01:21 EDT"
+	///or "Tue Oct 28 12:11:04 2003"; returns Long.MIN_VALUE if no date is found
+	private static long parseDate(String text) {
+		int day = -1, month = -1, year = -1, hour = 0, minute = 0, second = 0, offsetMinutes = 0;
+		StringTokenizer st = new StringTokenizer(text.replaceAll("\\(.*?\\)", " "), " ,");
+		while(st.hasMoreTokens()) {
+			String t = st.nextToken();
+			String lower = t.toLowerCase();
+			if(t.indexOf(':') > 0 && Character.isDigit(t.charAt(0))) {
+				String[] hms = t.split(":");
+				try {
+					hour = Integer.parseInt(hms[0]);
+					minute = Integer.parseInt(hms[1]);
+					second = hms.length > 2 ? Integer.parseInt(hms[2]) : 0;
+				} catch(NumberFormatException e) {
+				}
+			} else if(lower.length() >= 3 && month < 0 && Arrays.asList(MONTHS).indexOf(lower.substring(0, 3)) >= 0) {
+				month = Arrays.asList(MONTHS).indexOf(lower.substring(0, 3)) + 1;
+			} else if(t.matches("\\d{1,2}") && day < 0) {
+				day = Integer.parseInt(t);
+			} else if(t.matches("\\d{4}") && year < 0) {
+				year = Integer.parseInt(t);
+			} else if(t.matches("(GMT|UTC|UT)?[+-]\\d{4}")) {
+				String o = t.substring(t.length() - 5);
+				int hhmm = Integer.parseInt(o.substring(1));
+				offsetMinutes = (o.charAt(0) == '-' ? -1 : 1) * (hhmm / 100 * 60 + hhmm % 100);
+			} else if(lower.matches("[ecmp][sd]t")) {
+				///US zones: eastern -5, central -6, mountain -7, pacific -8, plus one hour for daylight time
+				int base = "ecmp".indexOf(lower.charAt(0)) + 5;
+				offsetMinutes = -(base - (lower.charAt(1) == 'd' ? 1 : 0)) * 60;
+			}
+		}
+		if(day < 1 || month < 1 || year < 1970 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+			return Long.MIN_VALUE;
+		}
+		try {
+			return LocalDateTime.of(year, month, day, hour, minute, Math.min(second, 59)).toEpochSecond(ZoneOffset.UTC) * 1000
+					- offsetMinutes * 60000L;
+		} catch(DateTimeException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+}
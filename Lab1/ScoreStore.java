@@ -0,0 +1,109 @@
+import java.util.*;
+
+///Log-odds of every test message with its true class, recorded once while testing. From the stored scores
+///the full ROC curve, precision and recall at every threshold, the AUC and the threshold for a target false
+///positive rate are computed in O(n log n), without classifying the messages again.
+///A message is called spam at threshold t if its log-odds are at least t; t = 0 is the usual argmax rule.
+public class ScoreStore
+{
+	private double[] spamScores = new double[64];
+	private double[] regularScores = new double[64];
+	private int nSpam = 0;
+	private int nRegular = 0;
+
+	///one operating point of the classifier
+	public static class Point
+	{
+		public final double threshold;
+		public final int truePositives;			///spam messages called spam
+		public final int falsePositives;		///regular messages called spam
+		public final double truePositiveRate;
+		public final double falsePositiveRate;
+		public final double precision;
+
+		Point(double threshold, int truePositives, int falsePositives, int nSpam, int nRegular) {
+			this.threshold = threshold;
+			this.truePositives = truePositives;
+			this.falsePositives = falsePositives;
+			truePositiveRate = nSpam == 0 ? 0 : (double)truePositives / nSpam;
+			falsePositiveRate = nRegular == 0 ? 0 : (double)falsePositives / nRegular;
+			precision = truePositives + falsePositives == 0 ? 1 : (double)truePositives / (truePositives + falsePositives);
+		}
+
+		///recall is the true positive rate
+		public double recall() {
+			return truePositiveRate;
+		}
+
+		public String toString() {
+			return "threshold: " + threshold + " true positive rate (recall): " + truePositiveRate +
+					" false positive rate: " + falsePositiveRate + " precision: " + precision;
+		}
+	}
+
+	public void add(double logOdds, boolean spam) {
+		if(spam) {
+			if(nSpam == spamScores.length) {
+				spamScores = Arrays.copyOf(spamScores, nSpam * 2);
+			}
+			spamScores[nSpam++] = logOdds;
+		} else {
+			if(nRegular == regularScores.length) {
+				regularScores = Arrays.copyOf(regularScores, nRegular * 2);
+			}
+			regularScores[nRegular++] = logOdds;
+		}
+	}
+
+	public int size() {
+		return nSpam + nRegular;
+	}
+
+	///the ROC curve: one point per distinct score, from the highest threshold to the lowest, preceded by the
+	///point where nothing is called spam
+	public ArrayList<Point> roc() {
+		double[] spam = Arrays.copyOf(spamScores, nSpam);
+		double[] regular = Arrays.copyOf(regularScores, nRegular);
+		Arrays.sort(spam);
+		Arrays.sort(regular);
+
+		///walk both sorted arrays from the top, lowering the threshold to the next distinct score
+		ArrayList<Point> points = new ArrayList<Point>();
+		points.add(new Point(Double.POSITIVE_INFINITY, 0, 0, nSpam, nRegular));
+		int s = nSpam - 1;
+		int r = nRegular - 1;
+		while(s >= 0 || r >= 0) {
+			double t = Math.max(s >= 0 ? spam[s] : Double.NEGATIVE_INFINITY, r >= 0 ? regular[r] : Double.NEGATIVE_INFINITY);
+			while(s >= 0 && spam[s] >= t) {
+				s--;
+			}
+			while(r >= 0 && regular[r] >= t) {
+				r--;
+			}
+			points.add(new Point(t, nSpam - 1 - s, nRegular - 1 - r, nSpam, nRegular));
+		}
+		return points;
+	}
+
+	///area under a ROC curve, with the trapezoid rule so tied scores count half
+	public static double auc(ArrayList<Point> roc) {
+		double area = 0;
+		for(int i = 1; i < roc.size(); i++) {
+			Point a = roc.get(i - 1);
+			Point b = roc.get(i);
+			area += (b.falsePositiveRate - a.falsePositiveRate) * (a.truePositiveRate + b.truePositiveRate) / 2;
+		}
+		return area;
+	}
+
+	///the point with the highest true positive rate whose false positive rate is at most the target
+	public static Point bestForFalsePositiveRate(ArrayList<Point> roc, double target) {
+		Point best = roc.get(0);
+		for(Point p : roc) {
+			if(p.falsePositiveRate <= target && p.truePositiveRate > best.truePositiveRate) {
+				best = p;
+			}
+		}
+		return best;
+	}
+}
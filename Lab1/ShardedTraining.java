@@ -0,0 +1,76 @@
+import java.io.*;
+import java.util.*;
+
+///Trains Bayespam or BigramBayespam with several local worker processes.
+///Worker i runs the classifier with -shard i/N -savecounts, so it reads only its share of the training
+///messages and writes a sorted count table. The tables are merged with a streaming k-way merge and the
+///classifier is then run once on the merged table (-counts), which computes the probabilities and tests.
+///The same table files can be produced on other machines and merged here.
+///
+///usage: java ShardedTraining <train dir> <test dir> <workers> <work dir> [-bigram] [classifier options]
+public class ShardedTraining
+{
+	public static void main(String[] args)
+	throws IOException, InterruptedException
+	{
+		if(args.length < 4) {
+			System.out.println( "- Error: usage: java ShardedTraining <train dir> <test dir> <workers> <work dir> [-bigram] [options]\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		String train = args[0];
+		String test = args[1];
+		int workers = Integer.parseInt(args[2]);
+		File workDir = new File(args[3]);
+		workDir.mkdirs();
+
+		String classifier = "Bayespam";
+		ArrayList<String> options = new ArrayList<String>();
+		for(int i = 4; i < args.length; i++) {
+			if(args[i].equals("-bigram")) {
+				classifier = "BigramBayespam";
+			} else {
+				options.add(args[i]);
+			}
+		}
+
+		///start the workers, each on its own shard of the training messages
+		long start = System.currentTimeMillis();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ArrayList<Process> processes = new ArrayList<Process>();
+		ArrayList<File> tables = new ArrayList<File>();
+		for(int i = 0; i < workers; i++) {
+			File table = new File(workDir, "shard-" + i + ".counts");
+			tables.add(table);
+			ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), classifier,
+					train, test, "-shard", i + "/" + workers, "-savecounts", table.getPath());
+			pb.inheritIO();
+			processes.add(pb.start());
+		}
+		for(int i = 0; i < workers; i++) {
+			int exit = processes.get(i).waitFor();
+			if(exit != 0 || !tables.get(i).isFile()) {
+				System.out.println( "- Error: worker " + i + " failed with exit code " + exit + "\n" );
+				Runtime.getRuntime().exit(1);
+			}
+		}
+		System.out.println("Trained " + workers + " shards in " + (System.currentTimeMillis() - start) + " ms");
+
+		///merge the shard tables into one
+		start = System.currentTimeMillis();
+		File merged = new File(workDir, "merged.counts");
+		long tokens = CountTable.merge(tables, merged, 0);
+		System.out.println("Merged " + tokens + " tokens in " + (System.currentTimeMillis() - start) + " ms");
+
+		///compute the probabilities once on the merged counts and test
+		options.add(0, train);
+		options.add(1, test);
+		options.add("-counts");
+		options.add(merged.getPath());
+		String[] classifierArgs = options.toArray(new String[0]);
+		if(classifier.equals("Bayespam")) {
+			Bayespam.main(classifierArgs);
+		} else {
+			BigramBayespam.main(classifierArgs);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+///Character shingles as an extra feature family: every run of n bytes of the raw message (ASCII letters
+///lowercased, every run of whitespace read as one space) is hashed with a rolling polynomial hash into a
+///table of 2^bits buckets with a count per class. Digits and punctuation are kept, so obfuscated words
+///like "v1/\gr/\" still give features that cleanWord would throw away. No Strings are made: the hash of
+///the next shingle is computed from the previous one in constant time per byte.
+///Not thread-safe: scoring marks the buckets of the current message in a shared array.
+public class ShingleFeatures
+{
+	///multiplier of the polynomial hash (odd, so multiplication is invertible modulo 2^64)
+	private static final long BASE = 0x100000001b3L;
+
+	private final int n;
+	private final int bits;
+	private final long outFactor;			///BASE^n, to remove the byte leaving the window
+	private final int[][] counts;
+	private final long[] nShingles = new long[2];
+
+	///log-odds per bucket after computeProbabilities; buckets never seen in training are skipped
+	private double[] logOdds;
+
+	///buckets already used for the current message: stamp[b] == epoch
+	private final int[] stamp;
+	private int epoch = 0;
+
+	///the bytes of the current window, as a ring
+	private final byte[] window;
+
+	public ShingleFeatures(int n, int bits) {
+		this.n = n;
+		this.bits = bits;
+		long f = 1;
+		for(int i = 0; i < n; i++) {
+			f *= BASE;
+		}
+		outFactor = f;
+		counts = new int[2][1 << bits];
+		stamp = new int[1 << bits];
+		window = new byte[n];
+	}
+
+	///count the shingles of a message for a class (0 regular, 1 spam)
+	public void learn(byte[] message, int offset, int length, int type) {
+		int[] classCounts = counts[type];
+		long h = 0;
+		int filled = 0;
+		boolean space = true;						///leading whitespace is dropped
+		for(int i = offset; i < offset + length; i++) {
+			int b = normalize(message[i]);
+			if(b == ' ') {
+				if(space) {
+					continue;
+				}
+				space = true;
+			} else {
+				space = false;
+			}
+			int slot = filled % n;
+			h = h * BASE + b - (filled >= n ? outFactor * (window[slot] & 0xff) : 0);
+			window[slot] = (byte)b;
+			if(++filled >= n) {
+				classCounts[bucket(h)]++;
+				nShingles[type]++;
+			}
+		}
+	}
+
+	///turn the counts into per bucket log-odds, log P(bucket|spam) - log P(bucket|regular), with the
+	///default minimum probability for a class that never saw the bucket
+	public void computeProbabilities(double epsilon) {
+		double minimum = epsilon / (nShingles[0] + nShingles[1]);
+		logOdds = new double[1 << bits];
+		for(int b = 0; b < logOdds.length; b++) {
+			double regular = counts[0][b] == 0 ? minimum : (double)counts[0][b] / nShingles[0];
+			double spam = counts[1][b] == 0 ? minimum : (double)counts[1][b] / nShingles[1];
+			logOdds[b] = Math.log(spam) - Math.log(regular);
+		}
+	}
+
+	///sum of the log-odds of the distinct known shingles of a message
+	public double logOdds(byte[] message, int offset, int length) {
+		if(++epoch == 0) {
+			java.util.Arrays.fill(stamp, 0);
+			epoch = 1;
+		}
+		double sum = 0;
+		long h = 0;
+		int filled = 0;
+		boolean space = true;
+		for(int i = offset; i < offset + length; i++) {
+			int b = normalize(message[i]);
+			if(b == ' ') {
+				if(space) {
+					continue;
+				}
+				space = true;
+			} else {
+				space = false;
+			}
+			int slot = filled % n;
+			h = h * BASE + b - (filled >= n ? outFactor * (window[slot] & 0xff) : 0);
+			window[slot] = (byte)b;
+			if(++filled >= n) {
+				int bucket = bucket(h);
+				if(stamp[bucket] != epoch && (counts[0][bucket] | counts[1][bucket]) != 0) {
+					stamp[bucket] = epoch;
+					sum += logOdds[bucket];
+				}
+			}
+		}
+		return sum;
+	}
+
+	///shingle length in bytes
+	public int length() {
+		return n;
+	}
+
+	///number of buckets with a count
+	public int usedBuckets() {
+		int used = 0;
+		for(int b = 0; b < stamp.length; b++) {
+			if((counts[0][b] | counts[1][b]) != 0) {
+				used++;
+			}
+		}
+		return used;
+	}
+
+	///lowercase ASCII letters and read all whitespace as a space
+	private static int normalize(byte b) {
+		if(b >= 'A' && b <= 'Z') {
+			return b + ('a' - 'A');
+		}
+		if(b == '\t' || b == '\n' || b == '\r' || b == '\f') {
+			return ' ';
+		}
+		return b & 0xff;
+	}
+
+	private int bucket(long h) {
+		return (int)(TokenHash.finish(h) >>> (64 - bits));
+	}
+}
@@ -0,0 +1,77 @@
+import java.io.*;
+import java.util.*;
+
+///Exact token counting in bounded memory. Counts accumulate in an in-memory buffer of at most maxTokens
+///distinct tokens; when it is full the buffer is sorted and spilled to disk as a count table. At the end
+///all spills are combined with a k-way merge into one count table, so the memory used while reading the
+///corpus stays flat however large the vocabulary grows.
+public class SpillingCounter
+{
+	private final int maxTokens;
+	private final File spillDir;
+	private HashMap<String, int[]> buffer = new HashMap<String, int[]>();
+	private ArrayList<File> spills = new ArrayList<File>();
+	private int nSpills = 0;
+
+	public SpillingCounter(int maxTokens, File spillDir) {
+		this.maxTokens = maxTokens;
+		this.spillDir = spillDir;
+	}
+
+	///count one occurrence of a token for a class (0 regular, 1 spam)
+	public void add(String token, int type)
+	throws IOException
+	{
+		int[] counts = buffer.get(token);
+		if(counts == null) {
+			if(buffer.size() >= maxTokens) {
+				spill();
+			}
+			counts = new int[2];
+			buffer.put(token, counts);
+		}
+		counts[type]++;
+	}
+
+	///number of spill files written so far
+	public int spills() {
+		return nSpills;
+	}
+
+	///write the sorted buffer to a new spill file and empty it
+	private void spill()
+	throws IOException
+	{
+		File file = new File(spillDir, "spill-" + nSpills++ + ".counts");
+		String[] tokens = buffer.keySet().toArray(new String[0]);
+		Arrays.sort(tokens);
+		CountTable.Writer writer = new CountTable.Writer(file, 0, 0);
+		for(String t : tokens) {
+			int[] counts = buffer.get(t);
+			writer.add(t, counts[0], counts[1]);
+		}
+		writer.close();
+		spills.add(file);
+		buffer = new HashMap<String, int[]>();
+	}
+
+	///merge all spills and the remaining buffer into one count table, dropping tokens whose total count is
+	///below minTotal, and delete the spill files; returns the number of tokens written
+	public long finish(File output, int minTotal, long nMessagesRegular, long nMessagesSpam)
+	throws IOException
+	{
+		spill();
+
+		///the message totals are recorded in one extra (empty) table so the merge adds them to the output
+		File totals = new File(spillDir, "totals.counts");
+		new CountTable.Writer(totals, nMessagesRegular, nMessagesSpam).close();
+		spills.add(totals);
+
+		long tokens = CountTable.merge(spills, output, minTotal);
+		for(File f : spills) {
+			f.delete();
+		}
+		spills.clear();
+		return tokens;
+	}
+}
@@ -0,0 +1,265 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+///Classifies a stream of messages like a Unix filter: framed messages are read from standard input and
+///one verdict per message is written to standard output, in input order. The model is trained (or loaded
+///from a count table) once at startup, without printing the vocabulary.
+///Messages are read into micro-batches that are classified on a pool of worker threads. At most a few
+///batches per worker are in flight, so memory stays bounded and a slow reader of the output slows down
+///the input instead of filling the heap.
+///
+///Input frames:
+/// - default: a line with the length of the message in bytes in decimal (at most 256 MB), followed by that many bytes
+/// - with -json: one JSON object per line with a base64 "body" and an optional "id" string
+///Output: per message a line "<number> spam|regular <log-odds>", or with -json a JSON object with the id.
+///
+///usage: java StreamClassifier <train dir> [-counts file] [-json] [-threads N] [-batch N]
+public class StreamClassifier
+{
+	private static MessageClassifier classifier;
+
+	///largest message accepted in a length-prefixed frame, so a bad header cannot exhaust the heap
+	private static final int MAX_MESSAGE = 1 << 28;
+	private static boolean json = false;
+
+	///one scratch per worker thread
+	private static final ThreadLocal<ClassifyScratch> scratch = new ThreadLocal<ClassifyScratch>() {
+		protected ClassifyScratch initialValue() {
+			return new ClassifyScratch();
+		}
+	};
+
+	///a message of the stream: its number, id (json only) and bytes
+	private static class Frame
+	{
+		long number;
+		String id;
+		byte[] body;
+	}
+
+	///the verdicts of a batch, formatted as output
+	private static Callable<String> classifyBatch(final ArrayList<Frame> batch) {
+		return new Callable<String>() {
+			public String call() {
+				StringBuilder out = new StringBuilder(batch.size() * 48);
+				ClassifyScratch s = scratch.get();
+				for(Frame frame : batch) {
+					Verdict verdict = classifier.classify(frame.body, 0, frame.body.length, s);
+					if(json) {
+						out.append("{\"id\": ").append(frame.id == null ? "null" : quote(frame.id))
+							.append(", \"spam\": ").append(verdict.spam)
+							.append(", \"logOdds\": ").append(verdict.logOdds).append("}\n");
+					} else {
+						out.append(frame.number).append(verdict.spam ? " spam " : " regular ").append(verdict.logOdds).append('\n');
+					}
+				}
+				return out.toString();
+			}
+		};
+	}
+
+	///read the next length-prefixed frame, or null at the end of the input
+	private static Frame readLengthPrefixed(DataInputStream in)
+	throws IOException
+	{
+		StringBuilder header = new StringBuilder();
+		int c;
+		while((c = in.read()) != '\n') {
+			if(c < 0) {
+				if(header.toString().trim().length() > 0) {
+					throw new EOFException("input ends in a frame header");
+				}
+				return null;
+			}
+			header.append((char)c);
+		}
+		int length;
+		try {
+			length = Integer.parseInt(header.toString().trim());
+		} catch(NumberFormatException e) {
+			throw new IOException("bad frame header: " + header);
+		}
+		if(length < 0 || length > MAX_MESSAGE) {
+			throw new IOException("frame length " + length + " out of range 0.." + MAX_MESSAGE);
+		}
+		Frame frame = new Frame();
+		frame.body = new byte[length];
+		in.readFully(frame.body);
+		return frame;
+	}
+
+	///read the next JSON lines frame, or null at the end of the input
+	private static Frame readJson(BufferedReader in)
+	throws IOException
+	{
+		String line;
+		do {
+			line = in.readLine();
+			if(line == null) {
+				return null;
+			}
+		} while(line.trim().length() == 0);
+		String body = stringField(line, "body");
+		if(body == null) {
+			throw new IOException("no \"body\" in input line: " + line);
+		}
+		Frame frame = new Frame();
+		frame.id = stringField(line, "id");
+		frame.body = Base64.getMimeDecoder().decode(body);
+		return frame;
+	}
+
+	///the value of a string field of a flat JSON object, with the common escapes undone, or null
+	private static String stringField(String object, String name) {
+		int key = object.indexOf("\"" + name + "\"");
+		if(key < 0) {
+			return null;
+		}
+		int i = object.indexOf(':', key + name.length() + 2);
+		while(i >= 0 && ++i < object.length() && Character.isWhitespace(object.charAt(i))) {
+		}
+		if(i < 0 || i >= object.length() || object.charAt(i) != '"') {
+			return null;
+		}
+		StringBuilder value = new StringBuilder();
+		for(i++; i < object.length() && object.charAt(i) != '"'; i++) {
+			char c = object.charAt(i);
+			if(c == '\\' && i + 1 < object.length()) {
+				c = object.charAt(++i);
+				if(c == 'n') {
+					c = '\n';
+				} else if(c == 't') {
+					c = '\t';
+				} else if(c == 'u' && i + 4 < object.length()) {
+					c = (char)Integer.parseInt(object.substring(i + 1, i + 5), 16);
+					i += 4;
+				}
+			}
+			value.append(c);
+		}
+		return value.toString();
+	}
+
+	private static String quote(String s) {
+		StringBuilder q = new StringBuilder("\"");
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				q.append('\\').append(c);
+			} else if(c < ' ') {
+				q.append(String.format("\\u%04x", (int)c));
+			} else {
+				q.append(c);
+			}
+		}
+		return q.append('"').toString();
+	}
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		if(args.length < 1) {
+			System.err.println( "- Error: usage: java StreamClassifier <train dir> [-counts file] [-json] [-threads N] [-batch N]\n" );
+			Runtime.getRuntime().exit(1);
+		}
+		File counts = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int batchSize = 64;
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].equals("-counts") && i + 1 < args.length) {
+				counts = new File(args[++i]);
+			} else if(args[i].equals("-json")) {
+				json = true;
+			} else if(args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-batch") && i + 1 < args.length) {
+				batchSize = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println( "- Error: unknown option " + args[i] + "\n" );
+				Runtime.getRuntime().exit(1);
+			}
+		}
+
+		///messages only go to standard error, standard output is for the verdicts
+		long start = System.currentTimeMillis();
+		classifier = Bayespam.trainCompiledClassifier(new File(args[0]), counts);
+		System.err.println("Model of " + classifier.modelSize() + " tokens ready in " + (System.currentTimeMillis() - start) + " ms");
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final ArrayBlockingQueue<Future<String>> inFlight = new ArrayBlockingQueue<Future<String>>(2 * threads);
+		final Future<String> end = new FutureTask<String>(new Callable<String>() {
+			public String call() {
+				return null;
+			}
+		});
+
+		///the writer takes the batches in the order they were read, waiting for each to finish
+		final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 1 << 16);
+		///the first error of the writer, checked by the reader thread between frames
+		final AtomicReference<IOException> writeError = new AtomicReference<IOException>();
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for(Future<String> batch = inFlight.take(); batch != end; batch = inFlight.take()) {
+						if(writeError.get() != null) {
+							continue;					///after an error keep taking, so the reader is not blocked
+						}
+						try {
+							out.write(batch.get());
+							if(inFlight.isEmpty()) {
+								out.flush();			///nothing else ready, let the next process see the verdicts
+							}
+						} catch(IOException e) {
+							writeError.compareAndSet(null, e);
+						} catch(ExecutionException e) {
+							writeError.compareAndSet(null, new IOException(e.getCause()));
+						}
+					}
+					out.flush();
+				} catch(IOException e) {
+					writeError.compareAndSet(null, e);
+				} catch(InterruptedException e) {
+					writeError.compareAndSet(null, new InterruptedIOException("writer interrupted"));
+				}
+			}
+		};
+		writer.start();
+
+		DataInputStream binary = new DataInputStream(new BufferedInputStream(System.in, 1 << 16));
+		BufferedReader lines = json ? new BufferedReader(new InputStreamReader(binary, "UTF-8"), 1 << 16) : null;
+		long number = 0;
+		ArrayList<Frame> batch = new ArrayList<Frame>(batchSize);
+		try {
+			while(writeError.get() == null) {
+				Frame frame = json ? readJson(lines) : readLengthPrefixed(binary);
+				if(frame != null) {
+					frame.number = number++;
+					batch.add(frame);
+				}
+				///a batch is sent when it is full, at the end, or when no more input is waiting
+				if(!batch.isEmpty() && (frame == null || batch.size() == batchSize || (json ? !lines.ready() : binary.available() == 0))) {
+					inFlight.put(pool.submit(classifyBatch(batch)));	///blocks while enough batches are in flight
+					batch = new ArrayList<Frame>(batchSize);
+				}
+				if(frame == null) {
+					break;
+				}
+			}
+		} finally {
+			///also after a bad frame: write the verdicts of the frames before it and stop the threads, so the
+			///process exits with the error
+			if(!batch.isEmpty() && writeError.get() == null) {
+				inFlight.put(pool.submit(classifyBatch(batch)));
+			}
+			inFlight.put(end);
+			writer.join();
+			pool.shutdown();
+		}
+		if(writeError.get() != null) {
+			throw writeError.get();
+		}
+		System.err.println("Classified " + number + " messages in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
@@ -0,0 +1,32 @@
+///64-bit token hash that can be computed one character at a time, so tokenizers working on raw
+///bytes or reusable buffers get the same value as hash(String) without building the String.
+public class TokenHash
+{
+	///FNV-1a offset basis and prime
+	public static final long SEED = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	///add one character to a running hash
+	public static long step(long h, char c) {
+		return (h ^ c) * PRIME;
+	}
+
+	///finalize a running hash (murmur3 fmix64), so every bit of the result depends on every character
+	public static long finish(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	///hash of a whole token
+	public static long hash(CharSequence word) {
+		long h = SEED;
+		for(int i = 0; i < word.length(); i++) {
+			h = step(h, word.charAt(i));
+		}
+		return finish(h);
+	}
+}
@@ -0,0 +1,379 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+///Durable training state for a continuously learning classifier: an append-only log of learn events plus
+///periodic snapshots of the count tables (in the CountTable format).
+///Every learned message is logged as its class and the ids of its words; the first time a segment uses an
+///id, the word itself is logged once. Events are buffered and written in groups: one write and one fsync
+///for every groupSize messages (group commit), each group framed with its length and a CRC32 so a torn
+///write at the end of the log is detected and dropped on recovery.
+///Every message event also names the input it was learned from, and the end of training is logged as an
+///event, so recovery knows the last input learned completely and whether the model is complete or training
+///has to resume after that input.
+///A checkpoint writes a snapshot, appends the training progress to it, makes it durable and renames it into
+///place, then starts a new, empty log segment and deletes the older files. The directory is forced after
+///the rename and after creating a segment, so the new names survive a crash as well. Recovery loads the
+///latest snapshot and replays its log segment.
+///
+///Files in the directory: snapshot-N.counts and journal-N.log; log N holds the events after snapshot N.
+///A snapshot is a count table followed by the progress (complete flag, last input), its length and a marker.
+public class TrainingJournal
+{
+	private static final byte MESSAGE = 1;
+	private static final byte WORD = 2;
+	private static final byte COMPLETE = 3;
+
+	///marker at the end of a snapshot, after the progress
+	private static final int PROGRESS = 0x50524f47;
+
+	private final File dir;
+	private final int groupSize;
+	private final long checkpointEvery;
+
+	///number of the current snapshot and log segment
+	private int segment;
+	private FileChannel log;
+
+	///events of the current group, and the ids whose word is already in the current segment
+	private final ByteArrayOutputStream group = new ByteArrayOutputStream(1 << 16);
+	private final DataOutputStream groupOut = new DataOutputStream(group);
+	private int messagesInGroup = 0;
+	private long messagesInSegment = 0;
+	private BitSet defined = new BitSet();
+
+	///words of the message being logged, as ids
+	private int messageType;
+	private int[] messageIds = new int[256];
+	private int nMessageIds = 0;
+
+	///the last input learned completely and whether training finished, as far as logged or recovered
+	private String lastInput = null;
+	private boolean complete = false;
+
+	///called for every message found in the log during recovery
+	public interface Replayer
+	{
+		void message(int type, String[] words) throws IOException;
+	}
+
+	public TrainingJournal(File dir, int groupSize, long checkpointEvery)
+	throws IOException
+	{
+		this.dir = dir;
+		this.groupSize = groupSize;
+		this.checkpointEvery = checkpointEvery;
+		dir.mkdirs();
+		segment = latestSegment();
+		if(snapshotFile(segment).isFile()) {
+			readProgress(snapshotFile(segment));
+		}
+	}
+
+	///true if the directory holds a snapshot or a log to recover from
+	public boolean hasState() {
+		return snapshotFile(segment).isFile() || logFile(segment).isFile();
+	}
+
+	///the latest snapshot, or null if there is none
+	public File snapshot() {
+		File snapshot = snapshotFile(segment);
+		return snapshot.isFile() ? snapshot : null;
+	}
+
+	///the input of the last message learned completely, or null if there is none; after recovery, training
+	///resumes after it
+	public String lastInput() {
+		return lastInput;
+	}
+
+	///true if the end of training was logged, so the recovered model is complete
+	public boolean complete() {
+		return complete;
+	}
+
+	///replay the messages of the latest log segment that were committed completely; a torn group at the
+	///end is cut off. Returns the number of messages replayed.
+	public long replay(Replayer replayer)
+	throws IOException
+	{
+		File file = logFile(segment);
+		if(!file.isFile()) {
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		HashMap<Integer, String> words = new HashMap<Integer, String>();
+		long messages = 0;
+		long valid = 0;
+		try {
+			while(true) {
+				int length;
+				long crc;
+				byte[] payload;
+				try {
+					length = in.readInt();
+					crc = in.readInt() & 0xffffffffL;
+					if(length < 0 || length > (1 << 30)) {
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch(EOFException e) {
+					break;
+				}
+				CRC32 check = new CRC32();
+				check.update(payload);
+				if(check.getValue() != crc) {
+					break;
+				}
+				DataInputStream events = new DataInputStream(new ByteArrayInputStream(payload));
+				while(events.available() > 0) {
+					byte event = events.readByte();
+					if(event == WORD) {
+						words.put(readVarInt(events), events.readUTF());
+					} else if(event == COMPLETE) {
+						complete = true;
+					} else {
+						int type = events.readByte();
+						lastInput = events.readUTF();
+						String[] message = new String[readVarInt(events)];
+						for(int i = 0; i < message.length; i++) {
+							message[i] = words.get(readVarInt(events));
+						}
+						replayer.message(type, message);
+						messages++;
+					}
+				}
+				valid += 8 + length;
+			}
+		} finally {
+			in.close();
+		}
+		///drop a torn tail, so new groups are not appended after garbage
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if(raf.length() > valid) {
+			raf.setLength(valid);
+		}
+		raf.close();
+		return messages;
+	}
+
+	///start logging a message of a class (0 regular, 1 spam)
+	public void startMessage(int type) {
+		messageType = type;
+		nMessageIds = 0;
+	}
+
+	///log an occurrence of a word with its id in the current message
+	public void word(int id, String word)
+	throws IOException
+	{
+		if(!defined.get(id)) {
+			groupOut.writeByte(WORD);
+			writeVarInt(groupOut, id);
+			groupOut.writeUTF(word);
+			defined.set(id);
+		}
+		if(nMessageIds == messageIds.length) {
+			messageIds = Arrays.copyOf(messageIds, nMessageIds * 2);
+		}
+		messageIds[nMessageIds++] = id;
+	}
+
+	///finish the current message, learned from an input (its path); commits the group when it is full
+	public void endMessage(String input)
+	throws IOException
+	{
+		groupOut.writeByte(MESSAGE);
+		groupOut.writeByte(messageType);
+		groupOut.writeUTF(input);
+		writeVarInt(groupOut, nMessageIds);
+		for(int i = 0; i < nMessageIds; i++) {
+			writeVarInt(groupOut, messageIds[i]);
+		}
+		lastInput = input;
+		messagesInSegment++;
+		if(++messagesInGroup >= groupSize) {
+			commit();
+		}
+	}
+
+	///log the end of training and commit it
+	public void trainingComplete()
+	throws IOException
+	{
+		groupOut.writeByte(COMPLETE);
+		complete = true;
+		commit();
+	}
+
+	///write the buffered events as one group and force it to disk
+	public void commit()
+	throws IOException
+	{
+		if(group.size() == 0) {
+			return;
+		}
+		if(log == null) {
+			boolean created = !logFile(segment).exists();
+			log = FileChannel.open(logFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			if(created) {
+				syncDir();								///the new segment must not vanish with a crash
+			}
+		}
+		byte[] payload = group.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+		frame.putInt(payload.length).putInt((int)crc.getValue()).put(payload).flip();
+		while(frame.hasRemaining()) {
+			log.write(frame);
+		}
+		log.force(false);
+		group.reset();
+		messagesInGroup = 0;
+	}
+
+	///true when enough messages were logged since the last snapshot
+	public boolean checkpointDue() {
+		return messagesInSegment >= checkpointEvery;
+	}
+
+	///the file to write the next snapshot to, then call commitCheckpoint
+	public File checkpointFile() {
+		return new File(dir, "snapshot.tmp");
+	}
+
+	///make the snapshot written to checkpointFile the latest one and start a new log segment; the events
+	///logged so far must be in the snapshot
+	public void commitCheckpoint()
+	throws IOException
+	{
+		group.reset();									///the snapshot holds these events already
+		messagesInGroup = 0;
+		ByteArrayOutputStream progress = new ByteArrayOutputStream();
+		DataOutputStream progressOut = new DataOutputStream(progress);
+		progressOut.writeBoolean(complete);
+		progressOut.writeBoolean(lastInput != null);
+		if(lastInput != null) {
+			progressOut.writeUTF(lastInput);
+		}
+		progressOut.writeInt(progress.size());
+		progressOut.writeInt(PROGRESS);
+		FileChannel snapshot = FileChannel.open(checkpointFile().toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		ByteBuffer trailer = ByteBuffer.wrap(progress.toByteArray());
+		while(trailer.hasRemaining()) {
+			snapshot.write(trailer);
+		}
+		snapshot.force(true);
+		snapshot.close();
+		int next = segment + 1;
+		Files.move(checkpointFile().toPath(), snapshotFile(next).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		syncDir();										///make the rename durable before the old files go
+		if(log != null) {
+			log.close();
+			log = null;
+		}
+		int old = segment;
+		segment = next;
+		messagesInSegment = 0;
+		defined = new BitSet();
+		snapshotFile(old).delete();
+		logFile(old).delete();
+	}
+
+	public void close()
+	throws IOException
+	{
+		commit();
+		if(log != null) {
+			log.close();
+		}
+	}
+
+	///read the progress appended to a snapshot by commitCheckpoint
+	private void readProgress(File snapshot)
+	throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(snapshot, "r");
+		try {
+			long end = in.length() - 8;
+			int length = -1;
+			if(end >= 0) {
+				in.seek(end);
+				length = in.readInt();
+				if(in.readInt() != PROGRESS) {
+					length = -1;
+				}
+			}
+			if(length < 2 || length > end) {
+				throw new IOException(snapshot + " has no training progress");
+			}
+			in.seek(end - length);
+			complete = in.readBoolean();
+			lastInput = in.readBoolean() ? in.readUTF() : null;
+		} finally {
+			in.close();
+		}
+	}
+
+	///force the directory, so that files created or renamed in it are durable
+	private void syncDir()
+	throws IOException
+	{
+		FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private File snapshotFile(int n) {
+		return new File(dir, String.format("snapshot-%06d.counts", n));
+	}
+
+	private File logFile(int n) {
+		return new File(dir, String.format("journal-%06d.log", n));
+	}
+
+	///the highest segment number with a snapshot or log in the directory
+	private int latestSegment() {
+		int latest = 0;
+		String[] names = dir.list();
+		if(names != null) {
+			for(String name : names) {
+				if(name.matches("(snapshot-\\d+\\.counts|journal-\\d+\\.log)")) {
+					latest = Math.max(latest, Integer.parseInt(name.replaceAll("\\D", "")));
+				}
+			}
+		}
+		return latest;
+	}
+
+	private static void writeVarInt(DataOutputStream out, int v)
+	throws IOException
+	{
+		while((v & ~0x7f) != 0) {
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	private static int readVarInt(DataInputStream in)
+	throws IOException
+	{
+		int v = 0;
+		for(int shift = 0; ; shift += 7) {
+			int b = in.readByte();
+			v |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return v;
+			}
+		}
+	}
+}
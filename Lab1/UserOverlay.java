@@ -0,0 +1,258 @@
+import java.io.*;
+import java.util.*;
+
+///Personal model of one mailbox, stored as a small sparse set of count adjustments on top of one shared,
+///immutable global model. Both use the token ids of the global vocabulary, so combining them at scoring
+///time costs one probe of the (mostly empty) overlay table per token. A token the user never touched uses
+///the precomputed log count of the base and the log total word count of this user; only adjusted tokens
+///need a logarithm. An overlay with a few hundred adjusted tokens takes a few kilobytes.
+///Tokens that are not in the global vocabulary are ignored, as they are by the global model.
+///Token ids depend on the order in which the global vocabulary was built, so a saved overlay identifies its
+///tokens by their TokenHash and is mapped onto the ids of the base it is loaded on; adjustments of tokens
+///that base does not have are dropped.
+public class UserOverlay
+{
+	///the shared global counts by token id, with their logarithms precomputed, and the TokenHash of every token
+	public static class Base
+	{
+		final long[] hashes;
+		final int[] countRegular;
+		final int[] countSpam;
+		final double[] logCountRegular;
+		final double[] logCountSpam;
+		final long nWordsRegular;
+		final long nWordsSpam;
+		final long nMessagesRegular;
+		final long nMessagesSpam;
+		final double epsilon;
+
+		public Base(long[] hashes, int[] countRegular, int[] countSpam, long nMessagesRegular, long nMessagesSpam, double epsilon) {
+			this.hashes = hashes;
+			this.countRegular = countRegular;
+			this.countSpam = countSpam;
+			this.nMessagesRegular = nMessagesRegular;
+			this.nMessagesSpam = nMessagesSpam;
+			this.epsilon = epsilon;
+			logCountRegular = new double[countRegular.length];
+			logCountSpam = new double[countSpam.length];
+			long regular = 0;
+			long spam = 0;
+			for(int t = 0; t < countRegular.length; t++) {
+				logCountRegular[t] = Math.log(countRegular[t]);	///-Infinity for 0, which the overlay never uses
+				logCountSpam[t] = Math.log(countSpam[t]);
+				regular += countRegular[t];
+				spam += countSpam[t];
+			}
+			nWordsRegular = regular;
+			nWordsSpam = spam;
+		}
+
+		public int size() {
+			return countRegular.length;
+		}
+	}
+
+	///first int of a saved overlay; files of the earlier format, keyed by token id, are refused
+	private static final int MAGIC = 0x4f564c32;				///"OVL2"
+
+	private final Base base;
+
+	///saved adjustments that could not be mapped onto the base when reading
+	private int unknownTokens = 0;
+
+	///open addressing table of adjusted token ids (stored + 1, 0 is empty) with their count adjustments
+	private int[] keys = new int[16];
+	private int[] deltaRegular = new int[16];
+	private int[] deltaSpam = new int[16];
+	private int size = 0;
+
+	///adjustments of the totals
+	private long deltaWordsRegular = 0;
+	private long deltaWordsSpam = 0;
+	private long deltaMessagesRegular = 0;
+	private long deltaMessagesSpam = 0;
+
+	///logarithms of this user's totals, recomputed after every change
+	private double logWordsRegular;
+	private double logWordsSpam;
+	private double logMinimum;
+	private double logPriorRegular;
+	private double logPriorSpam;
+
+	public UserOverlay(Base base) {
+		this.base = base;
+		updateTotals();
+	}
+
+	///adjust the count of a token in a class (0 regular, 1 spam) by n, which may be negative
+	public void learn(int tokenId, int type, int n) {
+		int i = slot(tokenId);
+		if(keys[i] == 0) {
+			keys[i] = tokenId + 1;
+			if(++size * 2 > keys.length) {
+				grow();
+				i = slot(tokenId);
+			}
+		}
+		if(type == 0) {
+			deltaRegular[i] += n;
+			deltaWordsRegular += n;
+		} else {
+			deltaSpam[i] += n;
+			deltaWordsSpam += n;
+		}
+	}
+
+	///count a learned message of a class, or take one away with n = -1
+	public void learnMessage(int type, int n) {
+		if(type == 0) {
+			deltaMessagesRegular += n;
+		} else {
+			deltaMessagesSpam += n;
+		}
+		updateTotals();
+	}
+
+	///recompute the cached logarithms of the totals, call after a batch of learn calls
+	public void updateTotals() {
+		long regular = base.nWordsRegular + deltaWordsRegular;
+		long spam = base.nWordsSpam + deltaWordsSpam;
+		logWordsRegular = Math.log(regular);
+		logWordsSpam = Math.log(spam);
+		logMinimum = Math.log(base.epsilon / (regular + spam));
+		double messagesRegular = base.nMessagesRegular + deltaMessagesRegular;
+		double messagesSpam = base.nMessagesSpam + deltaMessagesSpam;
+		logPriorRegular = Math.log(messagesRegular / (messagesRegular + messagesSpam));
+		logPriorSpam = Math.log(messagesSpam / (messagesRegular + messagesSpam));
+	}
+
+	public double logPriorRegular() {
+		return logPriorRegular;
+	}
+
+	public double logPriorSpam() {
+		return logPriorSpam;
+	}
+
+	///log P(token|regular) for this user; zero counts get the default minimum, as in Bayespam
+	public double logProbGivenRegular(int tokenId) {
+		int i = find(tokenId);
+		int count = base.countRegular[tokenId] + (i < 0 ? 0 : deltaRegular[i]);
+		if(count <= 0) {
+			return logMinimum;
+		}
+		return (i < 0 ? base.logCountRegular[tokenId] : Math.log(count)) - logWordsRegular;
+	}
+
+	public double logProbGivenSpam(int tokenId) {
+		int i = find(tokenId);
+		int count = base.countSpam[tokenId] + (i < 0 ? 0 : deltaSpam[i]);
+		if(count <= 0) {
+			return logMinimum;
+		}
+		return (i < 0 ? base.logCountSpam[tokenId] : Math.log(count)) - logWordsSpam;
+	}
+
+	///number of adjusted tokens
+	public int size() {
+		return size;
+	}
+
+	///memory taken by the adjustment table
+	public long sizeBytes() {
+		return 12L * keys.length;
+	}
+
+	///number of saved adjustments dropped by read because the base does not have their token
+	public int unknownTokens() {
+		return unknownTokens;
+	}
+
+	///write the adjustments (token hash, regular, spam) and the message adjustments
+	public void write(File file)
+	throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeLong(deltaMessagesRegular);
+		out.writeLong(deltaMessagesSpam);
+		out.writeInt(size);
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != 0) {
+				out.writeLong(base.hashes[keys[i] - 1]);
+				out.writeInt(deltaRegular[i]);
+				out.writeInt(deltaSpam[i]);
+			}
+		}
+		out.close();
+	}
+
+	///read an overlay written by write on top of a base, which may have been built in another order or from
+	///other messages than the base it was saved with
+	public static UserOverlay read(File file, Base base)
+	throws IOException
+	{
+		HashMap<Long, Integer> ids = new HashMap<Long, Integer>(base.size() * 2);
+		for(int id = 0; id < base.size(); id++) {
+			ids.put(base.hashes[id], id);
+		}
+		UserOverlay overlay = new UserOverlay(base);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException("not a user overlay of this version");
+			}
+			overlay.deltaMessagesRegular = in.readLong();
+			overlay.deltaMessagesSpam = in.readLong();
+			int n = in.readInt();
+			for(int k = 0; k < n; k++) {
+				Integer tokenId = ids.get(in.readLong());
+				int regular = in.readInt();
+				int spam = in.readInt();
+				if(tokenId == null) {
+					overlay.unknownTokens++;
+					continue;
+				}
+				overlay.learn(tokenId, 0, regular);
+				overlay.learn(tokenId, 1, spam);
+			}
+		} finally {
+			in.close();
+		}
+		overlay.updateTotals();
+		return overlay;
+	}
+
+	private int find(int tokenId) {
+		int i = slot(tokenId);
+		return keys[i] == 0 ? -1 : i;
+	}
+
+	///slot holding a token id, or the empty slot where it belongs
+	private int slot(int tokenId) {
+		int mask = keys.length - 1;
+		int h = tokenId * 0x9e3779b9;
+		int i = (h ^ (h >>> 16)) & mask;
+		while(keys[i] != 0 && keys[i] != tokenId + 1) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldRegular = deltaRegular;
+		int[] oldSpam = deltaSpam;
+		keys = new int[oldKeys.length * 2];
+		deltaRegular = new int[keys.length];
+		deltaSpam = new int[keys.length];
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != 0) {
+				int j = slot(oldKeys[i] - 1);
+				keys[j] = oldKeys[i];
+				deltaRegular[j] = oldRegular[i];
+				deltaSpam[j] = oldSpam[i];
+			}
+		}
+	}
+}
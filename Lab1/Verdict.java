@@ -0,0 +1,12 @@
+///Result of classifying one message: the verdict and the log-odds it is based on
+///(log P(spam|message) - log P(regular|message), the message is spam when it is at least 0).
+///Instances are reused by ClassifyScratch, copy the values if they must outlive the next call.
+public class Verdict
+{
+	public boolean spam;
+	public double logOdds;
+
+	public String toString() {
+		return (spam ? "spam" : "regular") + " " + logOdds;
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.*;
+
+///Bounded cache of classification results, keyed by a hash of the normalized message body.
+///Spam campaigns send thousands of identical bodies, so a hit answers a message without tokenizing it.
+///Eviction is least recently used, and the cache empties itself when the model it was filled from changes.
+public class VerdictCache
+{
+	private final int capacity;
+	private final LinkedHashMap<Long, Double> entries;
+
+	///version of the model the cached scores were computed with
+	private int modelVersion = -1;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	public VerdictCache(final int capacity) {
+		this.capacity = capacity;
+		///access-ordered map that drops its least recently used entry when it grows past the capacity
+		entries = new LinkedHashMap<Long, Double>(Math.min(capacity, 1 << 16) * 4 / 3 + 1, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+				return size() > VerdictCache.this.capacity;
+			}
+		};
+	}
+
+	///return the cached log-odds for a body hash, or null; a different model version invalidates everything
+	public synchronized Double get(long bodyHash, int version) {
+		if(version != modelVersion) {
+			entries.clear();
+			modelVersion = version;
+		}
+		Double logOdds = entries.get(bodyHash);
+		if(logOdds == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return logOdds;
+	}
+
+	public synchronized void put(long bodyHash, int version, double logOdds) {
+		if(version == modelVersion) {
+			entries.put(bodyHash, logOdds);
+		}
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	///hash the body of a raw message (everything after the first empty line), ignoring case and
+	///treating every run of whitespace as a single space, so re-wrapped copies get the same key
+	public static long bodyHash(byte[] message, int length) {
+		int start = 0;									///without a header separator the whole message is hashed
+		int lineLength = 0;
+		for(int i = 0; i < length; i++) {
+			byte b = message[i];
+			if(b == '\n') {
+				if(lineLength == 0) {
+					start = i + 1;
+					break;
+				}
+				lineLength = 0;
+			} else if(b != '\r') {
+				lineLength++;
+			}
+		}
+
+		long h = TokenHash.SEED;
+		boolean space = true;
+		for(int i = start; i < length; i++) {
+			char c = (char)(message[i] & 0xff);
+			if(c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+				if(!space) {
+					h = TokenHash.step(h, ' ');
+					space = true;
+				}
+				continue;
+			}
+			if(c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			h = TokenHash.step(h, c);
+			space = false;
+		}
+		return TokenHash.finish(h);
+	}
+}
@@ -0,0 +1,281 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import kmeans.*;
+
+///Groups spam into campaigns: every message becomes a hashed TF-IDF vector over the Bayespam tokens
+///(cleanWord), and the vectors are clustered with spherical k-means (kmeans.SparseConcurrentKMeans).
+///Tokens are hashed into 2^bits dimensions, so no vocabulary-sized id table is needed, and vectors stay
+///sparse throughout: per message only its distinct buckets and their weights are kept (an int and a
+///float each), which is what lets this run on hundreds of thousands of messages.
+///Weights are (1 + log tf) * log(N / df), the vector scaled to unit length; buckets found in fewer than
+///minDf messages are dropped, they cannot tie messages together.
+///Every cluster is reported with its size, its mean cosine similarity to the center, the tokens with the
+///largest center weights (per bucket the most frequent token that hashes there) and a few of its files.
+///
+///It uses the tokenizer of Lab1 and the kmeans package of lab2, so it lives apart from both and is built
+///with them, from the repository root:
+///  javac -d <classes> Lab1/*.java lab2/clus_nowarnings/javaworld/kmeans/*.java campaigns/SpamCampaigns.java
+///  java -cp <classes> SpamCampaigns <dir> [-k N] [-bits N] [-iterations N] [-threads N] [-top N] [-mindf N] [-seed N]
+public class SpamCampaigns
+{
+	private static int k = 20;
+	private static int bits = 18;
+	private static int maxIterations = 50;
+	private static int threads = Runtime.getRuntime().availableProcessors();
+	private static int topTokens = 10;
+	private static int minDf = 2;
+	private static long seed = 1;
+
+	///the messages, sorted by path so a run is reproducible whatever order the files were read in
+	private static ArrayList<Path> paths = new ArrayList<Path>();
+	private static ArrayList<int[]> messageBuckets = new ArrayList<int[]>();
+	private static ArrayList<float[]> messageCounts = new ArrayList<float[]>();
+
+	///number of messages per bucket, and how often every token was seen (to name the buckets)
+	private static int[] documentFrequency;
+	private static HashMap<String, int[]> tokenCounts = new HashMap<String, int[]>();
+
+	///term counts of the current message: count per bucket and the buckets touched
+	private static int[] termCounts;
+	private static int[] touched = new int[1024];
+	private static int nTouched = 0;
+
+	private static int bucket(String word) {
+		return (int)(TokenHash.hash(word) >>> (64 - bits));
+	}
+
+	///count the tokens of a message and keep its distinct buckets with their counts
+	private static void addMessage(Path path, ArrayList<String> words) {
+		nTouched = 0;
+		for(String word : words) {
+			int b = bucket(word);
+			if(termCounts[b]++ == 0) {
+				if(nTouched == touched.length) {
+					touched = Arrays.copyOf(touched, nTouched * 2);
+				}
+				touched[nTouched++] = b;
+			}
+			int[] count = tokenCounts.get(word);
+			if(count == null) {
+				tokenCounts.put(word, new int[] {1});
+			} else {
+				count[0]++;
+			}
+		}
+		Arrays.sort(touched, 0, nTouched);
+		int[] buckets = Arrays.copyOf(touched, nTouched);
+		float[] counts = new float[nTouched];
+		for(int i = 0; i < nTouched; i++) {
+			counts[i] = termCounts[buckets[i]];
+			termCounts[buckets[i]] = 0;
+			documentFrequency[buckets[i]]++;
+		}
+		paths.add(path);
+		messageBuckets.add(buckets);
+		messageCounts.add(counts);
+	}
+
+	///replace the counts of a message by unit length TF-IDF weights, dropping rare buckets
+	private static void weigh(int m, double nMessages) {
+		int[] buckets = messageBuckets.get(m);
+		float[] counts = messageCounts.get(m);
+		int kept = 0;
+		double sumSquared = 0;
+		for(int i = 0; i < buckets.length; i++) {
+			int df = documentFrequency[buckets[i]];
+			if(df >= minDf) {
+				float w = (float)((1 + Math.log(counts[i])) * Math.log(nMessages / df));
+				buckets[kept] = buckets[i];
+				counts[kept++] = w;
+				sumSquared += (double)w * w;
+			}
+		}
+		double scale = sumSquared > 0 ? 1 / Math.sqrt(sumSquared) : 0;
+		for(int i = 0; i < kept; i++) {
+			counts[i] *= scale;
+		}
+		if(kept < buckets.length) {
+			messageBuckets.set(m, Arrays.copyOf(buckets, kept));
+			messageCounts.set(m, Arrays.copyOf(counts, kept));
+		}
+	}
+
+	///per bucket the most frequent token hashing there, and the number of distinct tokens that do
+	private static String[] bucketNames(int[] collisions) {
+		String[] names = new String[1 << bits];
+		int[] best = new int[1 << bits];
+		for(Map.Entry<String, int[]> e : tokenCounts.entrySet()) {
+			int b = bucket(e.getKey());
+			collisions[b]++;
+			if(e.getValue()[0] > best[b]) {
+				best[b] = e.getValue()[0];
+				names[b] = e.getKey();
+			}
+		}
+		return names;
+	}
+
+	private static void printClusters(Cluster[] clusters, SparseConcurrentKMeans kmeans, int[] rows) {
+		int[] collisions = new int[1 << bits];
+		String[] names = bucketNames(collisions);
+		Arrays.sort(clusters, new Comparator<Cluster>() {
+			public int compare(Cluster a, Cluster b) {
+				return b.getMemberIndexes().length - a.getMemberIndexes().length;
+			}
+		});
+		for(int c = 0; c < clusters.length; c++) {
+			int[] members = clusters[c].getMemberIndexes();
+			double[] center = clusters[c].getCenter();
+			double similarity = 0;
+			for(int m : members) {
+				similarity += kmeans.getSimilarity(m);
+			}
+			System.out.printf("Campaign %d: %d messages, mean similarity %.3f%n", c + 1, members.length, similarity / members.length);
+
+			///the largest center weights, with a bounded heap of bucket numbers
+			PriorityQueue<Integer> top = new PriorityQueue<Integer>(topTokens + 1, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(center[a], center[b]);
+				}
+			});
+			for(int b = 0; b < center.length; b++) {
+				if(center[b] > 0 && (top.size() < topTokens || center[b] > center[top.peek()])) {
+					top.add(b);
+					if(top.size() > topTokens) {
+						top.poll();
+					}
+				}
+			}
+			Integer[] buckets = top.toArray(new Integer[top.size()]);
+			Arrays.sort(buckets, top.comparator().reversed());
+			StringBuilder tokens = new StringBuilder("  tokens:");
+			for(int b : buckets) {
+				tokens.append(' ').append(names[b]);
+				if(collisions[b] > 1) {
+					tokens.append("(+").append(collisions[b] - 1).append(')');
+				}
+				tokens.append(String.format(":%.3f", center[b]));
+			}
+			System.out.println(tokens);
+			StringBuilder files = new StringBuilder("  e.g.:");
+			for(int i = 0; i < Math.min(3, members.length); i++) {
+				files.append(' ').append(paths.get(rows[members[i]]).getFileName());
+			}
+			System.out.println(files);
+		}
+	}
+
+	public static void main(String[] args)
+	throws IOException
+	{
+		if(args.length < 1 || !new File(args[0]).isDirectory()) {
+			System.out.println( "- Error: usage: java SpamCampaigns <dir> [-k N] [-bits N] [-iterations N] [-threads N] [-top N] [-mindf N] [-seed N]\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		for(int i = 1; i < args.length; i++) {
+			if(i + 1 >= args.length) {
+				System.out.println( "- Error: option " + args[i] + " needs a value\n" );
+				Runtime.getRuntime().exit(0);
+			}
+			String option = args[i];
+			String value = args[++i];
+			if(option.equals("-k")) {
+				k = Integer.parseInt(value);
+			} else if(option.equals("-bits")) {
+				bits = Integer.parseInt(value);
+			} else if(option.equals("-iterations")) {
+				maxIterations = Integer.parseInt(value);
+			} else if(option.equals("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if(option.equals("-top")) {
+				topTokens = Integer.parseInt(value);
+			} else if(option.equals("-mindf")) {
+				minDf = Integer.parseInt(value);
+			} else if(option.equals("-seed")) {
+				seed = Long.parseLong(value);
+			} else {
+				System.out.println( "- Error: unknown option " + option + "\n" );
+				Runtime.getRuntime().exit(0);
+			}
+		}
+		if(bits < 1 || bits > 28) {
+			System.out.println( "- Error: -bits must be between 1 and 28\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		documentFrequency = new int[1 << bits];
+		termCounts = new int[1 << bits];
+
+		long start = System.currentTimeMillis();
+		ConcurrentMessageReader reader = new ConcurrentMessageReader(256, threads);
+		reader.start(new Path[] {Paths.get(args[0])}, new int[] {1});
+		try {
+			for(ConcurrentMessageReader.Message message = reader.take(); message != null; message = reader.take()) {
+				addMessage(message.path, message.words);
+			}
+		} finally {
+			reader.close();
+		}
+
+		///weigh, then keep the messages with a nonempty vector, ordered by path
+		int nMessages = paths.size();
+		Integer[] order = new Integer[nMessages];
+		for(int m = 0; m < nMessages; m++) {
+			weigh(m, nMessages);
+			order[m] = m;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return paths.get(a).compareTo(paths.get(b));
+			}
+		});
+		int[] rows = new int[nMessages];
+		int nRows = 0;
+		long nonZeros = 0;
+		for(int m : order) {
+			if(messageBuckets.get(m).length > 0) {
+				rows[nRows++] = m;
+				nonZeros += messageBuckets.get(m).length;
+			}
+		}
+		rows = Arrays.copyOf(rows, nRows);
+		int[][] indices = new int[nRows][];
+		float[][] values = new float[nRows][];
+		for(int r = 0; r < nRows; r++) {
+			indices[r] = messageBuckets.get(rows[r]);
+			values[r] = messageCounts.get(rows[r]);
+		}
+		messageBuckets = null;
+		messageCounts = null;
+		termCounts = null;
+		System.out.println("Read " + nMessages + " messages in " + (System.currentTimeMillis() - start) + " ms: " + nRows + " vectors, " +
+							nonZeros + " nonzeros (" + (nRows == 0 ? 0 : nonZeros / nRows) + " per message, " + (nonZeros * 8 >> 20) + " MB), " +
+							tokenCounts.size() + " distinct tokens in " + (1 << bits) + " buckets");
+		if(nRows == 0) {
+			System.out.println( "- Error: no message has a token in " + minDf + " or more messages\n" );
+			Runtime.getRuntime().exit(0);
+		}
+
+		SparseConcurrentKMeans kmeans = new SparseConcurrentKMeans(indices, values, 1 << bits, k, maxIterations, seed, threads);
+		final Throwable[] error = new Throwable[1];
+		kmeans.addKMeansListener(new KMeansListener() {
+			public void kmeansMessage(String message) {
+				System.out.println(message);
+			}
+
+			public void kmeansComplete(Cluster[] clusters, long executionTime) {
+				System.out.println("Clustered into " + clusters.length + " campaigns in " + executionTime + " ms");
+			}
+
+			public void kmeansError(Throwable t) {
+				error[0] = t;
+			}
+		});
+		kmeans.run();
+		if(error[0] != null) {
+			System.out.println( "- Error: clustering failed: " + error[0] + "\n" );
+			Runtime.getRuntime().exit(0);
+		}
+		printClusters(kmeans.getClusters(), kmeans, rows);
+	}
+}
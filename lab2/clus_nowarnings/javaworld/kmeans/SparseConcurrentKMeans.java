@@ -0,0 +1,499 @@
+package kmeans;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spherical K-means for sparse, high-dimensional coordinates such as
+ * hashed TF-IDF vectors of text.  Each coordinate is given as the indices
+ * of its nonzero dimensions with their values and is expected to have unit
+ * length.  The distance between a coordinate and a center is the cosine
+ * distance, 1 - (coordinate . center), and centers are kept at unit length,
+ * so a distance only takes a sparse dot product over the nonzero entries of
+ * the coordinate.  Coordinates are never expanded to dense arrays; only the
+ * k centers are dense.  Like <code>ConcurrentKMeans</code>, assignments and
+ * center updates are divided over a pool of threads.
+ */
+public class SparseConcurrentKMeans implements KMeans {
+
+    // The nonzero dimensions of every coordinate, in ascending order, and
+    // their values.
+    private int[][] mIndices;
+    private float[][] mValues;
+    // Number of dimensions of the space, the length of a center.
+    private int mDimension;
+    // The desired number of clusters and maximum number
+    // of iterations.
+    private int mK, mMaxIterations;
+    // Seed for the random number generator used to select
+    // coordinates for the initial cluster centers.
+    private long mRandomSeed;
+    // The number of threads used to perform the subtasks.
+    private int mThreadCount;
+
+    // Dense, unit length centers, one per cluster.  A null center belongs
+    // to a cluster that lost all of its members.
+    private double[][] mCenters;
+    // The cluster of every coordinate, -1 before the first assignment.
+    private int[] mClusterAssignments;
+    // The similarity of every coordinate to the center of its cluster.
+    private double[] mSimilarities;
+    // Clusters whose membership changed in the last assignment, so their
+    // centers need updating.
+    private boolean[] mChanged;
+    // Pool running the subtasks.
+    private ExecutorService mExecutor;
+
+    // An array of Cluster objects: the output of k-means.
+    private Cluster[] mClusters;
+
+    // Listeners to be notified of significant happenings.
+    private List<KMeansListener> mListeners = new ArrayList<KMeansListener>(1);
+
+    /**
+     * Constructor
+     *
+     * @param indices for each coordinate, the ascending indices of its nonzero dimensions.
+     * @param values for each coordinate, the values belonging to <tt>indices</tt>; every
+     *   coordinate should have unit length.
+     * @param dimension the number of dimensions, greater than every index.
+     * @param k  the number of desired clusters.
+     * @param maxIterations the maximum number of clustering iterations.
+     * @param randomSeed seed used with the random number generator.
+     * @param threadCount the number of threads to be used for computing time-consuming steps.
+     */
+    public SparseConcurrentKMeans(int[][] indices, float[][] values, int dimension,
+            int k, int maxIterations, long randomSeed, int threadCount) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("indices and values differ in length: "
+                    + indices.length + " != " + values.length);
+        }
+        mIndices = indices;
+        mValues = values;
+        mDimension = dimension;
+        // Can't have more clusters than coordinates.
+        mK = Math.min(k, indices.length);
+        mMaxIterations = maxIterations;
+        mRandomSeed = randomSeed;
+        mThreadCount = Math.max(1, Math.min(threadCount, indices.length));
+    }
+
+    /**
+     * Constructor that uses the return from
+     * <tt>Runtime.getRuntime().availableProcessors()</tt> as the number
+     * of threads for time-consuming steps.
+     *
+     * @param indices for each coordinate, the ascending indices of its nonzero dimensions.
+     * @param values for each coordinate, the values belonging to <tt>indices</tt>.
+     * @param dimension the number of dimensions, greater than every index.
+     * @param k  the number of desired clusters.
+     * @param maxIterations the maximum number of clustering iterations.
+     * @param randomSeed seed used with the random number generator.
+     */
+    public SparseConcurrentKMeans(int[][] indices, float[][] values, int dimension,
+            int k, int maxIterations, long randomSeed) {
+        this (indices, values, dimension, k, maxIterations, randomSeed,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Adds a KMeansListener to be notified of significant happenings.
+     *
+     * @param l  the listener to be added.
+     */
+    public void addKMeansListener(KMeansListener l) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(l)) {
+                mListeners.add(l);
+            }
+        }
+    }
+
+    /**
+     * Removes a KMeansListener
+     *
+     * @param l the listener to be removed.
+     */
+    public void removeKMeansListener(KMeansListener l) {
+        synchronized (mListeners) {
+            mListeners.remove(l);
+        }
+    }
+
+    /**
+     * Posts a message to registered KMeansListeners.
+     *
+     * @param message
+     */
+    private void postKMeansMessage(String message) {
+        if (mListeners.size() > 0) {
+            synchronized (mListeners) {
+                int sz = mListeners.size();
+                for (int i=0; i<sz; i++) {
+                    mListeners.get(i).kmeansMessage(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notifies registered listeners that k-means is complete.
+     *
+     * @param clusters the output of clustering.
+     * @param executionTime the number of milliseconds taken to cluster.
+     */
+    private void postKMeansComplete(Cluster[] clusters, long executionTime) {
+        if (mListeners.size() > 0) {
+            synchronized (mListeners) {
+                int sz = mListeners.size();
+                for (int i=0; i<sz; i++) {
+                    mListeners.get(i).kmeansComplete(clusters, executionTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notifies registered listeners that k-means has failed because of
+     * a Throwable caught in the run method.
+     *
+     * @param err
+     */
+    private void postKMeansError(Throwable err) {
+        if (mListeners.size() > 0) {
+            synchronized (mListeners) {
+                int sz = mListeners.size();
+                for (int i=0; i<sz; i++) {
+                    mListeners.get(i).kmeansError(err);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the clusters computed by the algorithm.  This method should
+     * not be called until clustering has completed successfully.  The
+     * center of a cluster is a dense array of <tt>dimension</tt> values.
+     *
+     * @return an array of Cluster objects.
+     */
+    public Cluster[] getClusters() {
+        return mClusters;
+    }
+
+    /**
+     * Run the clustering algorithm.
+     */
+    public void run() {
+
+        try {
+
+            // Note the start time.
+            long startTime = System.currentTimeMillis();
+
+            postKMeansMessage("Sparse K-Means clustering started");
+
+            // Ensure there is enough memory for the dense centers.
+            long memRequired = 8L * mK * mDimension;
+            if (Runtime.getRuntime().maxMemory() - usedMemory() < memRequired) {
+                throw new InsufficientMemoryException(mK + " centers of " + mDimension
+                        + " dimensions need " + (memRequired >> 20) + " MB");
+            }
+
+            // Randomly initialize the cluster centers.
+            initCenters();
+            postKMeansMessage("... centers initialized");
+
+            mExecutor = Executors.newFixedThreadPool(mThreadCount);
+            if (mThreadCount > 1) {
+                postKMeansMessage("... concurrent processing mode with "
+                            + mThreadCount + " subtask threads");
+            } else {
+                postKMeansMessage("... non-concurrent processing mode");
+            }
+
+            // Make the initial cluster assignments.
+            makeAssignments();
+
+            // Number of moves in the iteration and the iteration counter.
+            int moves = 0, it = 0;
+
+            // Main Loop, with the same stopping criteria as ConcurrentKMeans:
+            // no moves in makeAssignments or the maximum number of iterations.
+            do {
+
+                // Compute the centers of the clusters that changed.
+                computeCenters();
+
+                // Make this iteration's assignments.
+                moves = makeAssignments();
+
+                it++;
+
+                postKMeansMessage("... iteration " + it + " moves = " + moves);
+
+            } while (moves > 0 && it < mMaxIterations);
+
+            mClusters = generateFinalClusters();
+
+            long executionTime = System.currentTimeMillis() - startTime;
+
+            postKMeansComplete(mClusters, executionTime);
+
+        } catch (Throwable t) {
+
+            postKMeansError(t);
+
+        } finally {
+
+            // Clean up temporary data structures used during the algorithm.
+            cleanup();
+
+        }
+    }
+
+    /**
+     * Get the cosine similarity of a coordinate to the center of its
+     * cluster, as of the last assignment.  Only valid after clustering has
+     * completed successfully.
+     *
+     * @param ndx index of the coordinate.
+     * @return the dot product of the coordinate and its center.
+     */
+    public double getSimilarity(int ndx) {
+        return mSimilarities[ndx];
+    }
+
+    /**
+     * Compute the dot product of a sparse coordinate and a dense center.
+     *
+     * @param indices the nonzero dimensions of the coordinate.
+     * @param values the values of the nonzero dimensions.
+     * @param center the dense center.
+     * @return the dot product.
+     */
+    public static double dot(int[] indices, float[] values, double[] center) {
+        double sum = 0.0;
+        for (int i=0; i<indices.length; i++) {
+            sum += values[i] * center[indices[i]];
+        }
+        return sum;
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Randomly select distinct coordinates to be the initial cluster centers.
+     */
+    private void initCenters() {
+
+        Random random = new Random(mRandomSeed);
+
+        int coordCount = mIndices.length;
+
+        mClusterAssignments = new int[coordCount];
+        // Initialize to -1 to indicate that they haven't been assigned yet.
+        Arrays.fill(mClusterAssignments, -1);
+        mSimilarities = new double[coordCount];
+        mChanged = new boolean[mK];
+
+        // Partial shuffle of the coordinate indices: only the first mK
+        // positions are needed, so the cost does not grow with the number
+        // of coordinates beyond the index array itself.
+        int[] indices = new int[coordCount];
+        for (int i = 0; i < coordCount; i++) {
+            indices[i] = i;
+        }
+        mCenters = new double[mK][];
+        for (int c = 0; c < mK; c++) {
+            int j = c + random.nextInt(coordCount - c);
+            int t = indices[c];
+            indices[c] = indices[j];
+            indices[j] = t;
+            double[] center = new double[mDimension];
+            int[] dims = mIndices[indices[c]];
+            float[] vals = mValues[indices[c]];
+            for (int i = 0; i < dims.length; i++) {
+                center[dims[i]] = vals[i];
+            }
+            normalize(center);
+            mCenters[c] = center;
+        }
+    }
+
+    /**
+     * Assign each coordinate to the most similar center.  Called once
+     * per iteration.  Returns the number of coordinates that have changed
+     * their cluster membership.
+     */
+    private int makeAssignments() throws InterruptedException, ExecutionException {
+        Arrays.fill(mChanged, false);
+        int coordCount = mIndices.length;
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(mThreadCount);
+        for (int t = 0; t < mThreadCount; t++) {
+            // Each worker takes an equal range of the coordinates.
+            final int start = (int) ((long) coordCount * t / mThreadCount);
+            final int lim = (int) ((long) coordCount * (t + 1) / mThreadCount);
+            tasks.add(new Callable<Integer>() {
+                public Integer call() {
+                    return workerMakeAssignments(start, lim);
+                }
+            });
+        }
+        int moves = 0;
+        for (Future<Integer> f : mExecutor.invokeAll(tasks)) {
+            moves += f.get();
+        }
+        return moves;
+    }
+
+    /**
+     * Assign the coordinates in [start, lim) to their nearest cluster.
+     *
+     * @return the number of moves.
+     */
+    private int workerMakeAssignments(int start, int lim) {
+        int moves = 0;
+        int numClusters = mCenters.length;
+        for (int i = start; i < lim; i++) {
+            int[] dims = mIndices[i];
+            float[] vals = mValues[i];
+            int nearest = -1;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < numClusters; c++) {
+                double[] center = mCenters[c];
+                if (center != null) {
+                    double s = dot(dims, vals, center);
+                    if (s > max) {
+                        max = s;
+                        nearest = c;
+                    }
+                }
+            }
+            mSimilarities[i] = max;
+            int previous = mClusterAssignments[i];
+            if (previous != nearest) {
+                mClusterAssignments[i] = nearest;
+                // Benign race: other workers only ever set these to true,
+                // and invokeAll() publishes the writes to the caller.
+                mChanged[nearest] = true;
+                if (previous >= 0) {
+                    mChanged[previous] = true;
+                }
+                moves++;
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Recompute the centers of the clusters whose membership changed:
+     * the normalized sum of the members.  A cluster without members
+     * falls out of contention, so k-means may return fewer than k clusters.
+     */
+    private void computeCenters() throws InterruptedException, ExecutionException {
+        final int[][] members = membership();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int c = 0; c < mCenters.length; c++) {
+            if (mCenters[c] == null || !mChanged[c]) {
+                continue;
+            }
+            if (members[c].length == 0) {
+                mCenters[c] = null;
+                continue;
+            }
+            final int cluster = c;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    double[] center = mCenters[cluster];
+                    Arrays.fill(center, 0.0);
+                    for (int ndx : members[cluster]) {
+                        int[] dims = mIndices[ndx];
+                        float[] vals = mValues[ndx];
+                        for (int i = 0; i < dims.length; i++) {
+                            center[dims[i]] += vals[i];
+                        }
+                    }
+                    normalize(center);
+                    return null;
+                }
+            });
+        }
+        for (Future<Object> f : mExecutor.invokeAll(tasks)) {
+            f.get();
+        }
+    }
+
+    /**
+     * Group the coordinate indices by cluster (a counting sort of the
+     * assignments), in ascending order within each cluster.
+     */
+    private int[][] membership() {
+        int numClusters = mCenters.length;
+        int[] sizes = new int[numClusters];
+        for (int c : mClusterAssignments) {
+            sizes[c]++;
+        }
+        int[][] members = new int[numClusters][];
+        for (int c = 0; c < numClusters; c++) {
+            members[c] = new int[sizes[c]];
+            sizes[c] = 0;
+        }
+        for (int i = 0; i < mClusterAssignments.length; i++) {
+            int c = mClusterAssignments[i];
+            members[c][sizes[c]++] = i;
+        }
+        return members;
+    }
+
+    /**
+     * Scale a center to unit length.
+     */
+    private static void normalize(double[] center) {
+        double sumSquared = 0.0;
+        for (int i=0; i<center.length; i++) {
+            sumSquared += center[i] * center[i];
+        }
+        if (sumSquared > 0.0) {
+            double scale = 1.0 / Math.sqrt(sumSquared);
+            for (int i=0; i<center.length; i++) {
+                center[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * Generate an array of Cluster objects from the non-empty clusters.
+     *
+     * @return array of Cluster object references.
+     */
+    private Cluster[] generateFinalClusters() {
+        int[][] members = membership();
+        List<Cluster> clusterList = new ArrayList<Cluster>(mCenters.length);
+        for (int c = 0; c < mCenters.length; c++) {
+            if (mCenters[c] != null && members[c].length > 0) {
+                clusterList.add(new Cluster(members[c], mCenters[c]));
+            }
+        }
+        Cluster[] clusters = new Cluster[clusterList.size()];
+        clusterList.toArray(clusters);
+        return clusters;
+    }
+
+    /**
+     * Clean up items used by the clustering algorithm that are no longer needed.
+     * The similarities are kept for getSimilarity().
+     */
+    private void cleanup() {
+        mCenters = null;
+        mClusterAssignments = null;
+        mChanged = null;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+}
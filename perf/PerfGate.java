@@ -0,0 +1,406 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import kmeans.*;
+
+///Performance regression gate for Lab1 and the kmeans package. A fixed set of deterministic workloads is
+///run and compared with the baselines in perf/baselines/<workload>.json; the gate exits with 1 when a
+///workload got slower or allocates more than its tolerance band allows, 2 when a workload fails or has
+///no baseline, and 0 otherwise.
+///Every run of a workload happens in a fresh JVM, because Bayespam and BigramBayespam keep their model in
+///static fields; the first run is a discarded warm-up (disk cache, class loading). A run measures only the
+///workload itself, not JVM startup. Per workload the gate reports:
+/// - throughput: units (messages or coordinates) per second over all measured runs
+/// - latency: median and 90th percentile wall time of a run
+/// - allocation: median bytes allocated by all threads of the run (ThreadMXBean, sampled every few ms, so
+///   short-lived pool threads are counted too)
+///Baselines are machine specific: after a deliberate change, or on a new machine, rerun with -update.
+///
+///usage, from the repository root:
+///  javac -d <classes> lab2/clus_nowarnings/javaworld/kmeans/*.java Lab1/*.java perf/PerfGate.java
+///  java -cp <classes> PerfGate [-runs N] [-only workload] [-update] [-baselines dir]
+public class PerfGate
+{
+	private static final String[] WORKLOADS = {"bayespam", "bigram-bayespam", "basic-kmeans", "concurrent-kmeans"};
+	private static final String RESULT = "PERFGATE ";
+
+	///default tolerance bands, as a fraction of the baseline, for new baseline files
+	private static final double THROUGHPUT_TOLERANCE = 0.30;
+	private static final double LATENCY_TOLERANCE = 0.50;
+	private static final double ALLOCATION_TOLERANCE = 0.10;
+
+	///synthetic k-means input: seeded Gaussian blobs
+	private static final int COORDINATES = 20000;
+	private static final int DIMENSIONS = 8;
+	private static final int BLOBS = 16;
+	private static final int KMEANS_THREADS = 4;
+
+	private static int runs = 5;
+	private static File baselineDir = new File("perf", "baselines");
+
+	///the measurements of one workload
+	private static class Measurement
+	{
+		String workload;
+		String units;
+		double throughput;
+		double p50Millis;
+		double p90Millis;
+		long allocatedBytes;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////////////
+	///child side: run a workload once and print its units, time and allocation
+
+	///total bytes allocated by the threads of this JVM, by sampling every thread while the workload runs
+	private static class AllocationMonitor extends Thread
+	{
+		private final com.sun.management.ThreadMXBean threads;
+		private final HashMap<Long, Long> allocated = new HashMap<Long, Long>();
+		private volatile boolean running = true;
+
+		AllocationMonitor() {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)bean : null;
+			setDaemon(true);
+		}
+
+		boolean supported() {
+			return threads != null && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+		}
+
+		///remember the latest count of every thread except this one; counts of finished threads are kept
+		private synchronized void sample() {
+			long[] ids = threads.getAllThreadIds();
+			long[] bytes = threads.getThreadAllocatedBytes(ids);
+			for(int i = 0; i < ids.length; i++) {
+				if(ids[i] != getId() && bytes[i] >= 0) {
+					allocated.put(ids[i], bytes[i]);
+				}
+			}
+		}
+
+		synchronized long total() {
+			long sum = 0;
+			for(long bytes : allocated.values()) {
+				sum += bytes;
+			}
+			return sum;
+		}
+
+		public void run() {
+			while(running) {
+				sample();
+				try {
+					Thread.sleep(2);
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		long finish() {
+			running = false;
+			sample();
+			return total();
+		}
+	}
+
+	///run the workload and return its number of units
+	private static long runWorkload(String workload)
+	throws IOException
+	{
+		if(workload.equals("bayespam") || workload.equals("bigram-bayespam")) {
+			String[] args = {"Lab1/spam-filter/train", "Lab1/spam-filter/test"};
+			if(workload.equals("bayespam")) {
+				Bayespam.main(args);
+			} else {
+				BigramBayespam.main(args);
+			}
+			return countFiles(new File(args[0])) + countFiles(new File(args[1]));
+		}
+		double[][] coordinates = blobs();
+		KMeans kmeans = workload.equals("basic-kmeans")
+				? new BasicKMeans(coordinates, BLOBS, 100, 1)
+				: new ConcurrentKMeans(coordinates, BLOBS, 100, 1, KMEANS_THREADS);
+		final Throwable[] error = new Throwable[1];
+		kmeans.addKMeansListener(new KMeansListener() {
+			public void kmeansMessage(String message) {
+			}
+
+			public void kmeansComplete(Cluster[] clusters, long executionTime) {
+			}
+
+			public void kmeansError(Throwable t) {
+				error[0] = t;
+			}
+		});
+		kmeans.run();
+		if(error[0] != null) {
+			throw new IOException("k-means failed", error[0]);
+		}
+		return COORDINATES;
+	}
+
+	///COORDINATES points around BLOBS seeded centers
+	private static double[][] blobs() {
+		Random random = new Random(42);
+		double[][] centers = new double[BLOBS][DIMENSIONS];
+		for(double[] center : centers) {
+			for(int d = 0; d < DIMENSIONS; d++) {
+				center[d] = random.nextDouble() * 100;
+			}
+		}
+		double[][] coordinates = new double[COORDINATES][DIMENSIONS];
+		for(int i = 0; i < COORDINATES; i++) {
+			double[] center = centers[random.nextInt(BLOBS)];
+			for(int d = 0; d < DIMENSIONS; d++) {
+				coordinates[i][d] = center[d] + random.nextGaussian() * 5;
+			}
+		}
+		return coordinates;
+	}
+
+	private static long countFiles(File dir) {
+		long n = 0;
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				n += f.isDirectory() ? countFiles(f) : 1;
+			}
+		}
+		return n;
+	}
+
+	///measure one run; the workload's own output is thrown away
+	private static void child(String workload)
+	throws IOException
+	{
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		AllocationMonitor monitor = new AllocationMonitor();
+		boolean allocation = monitor.supported();
+		if(allocation) {
+			monitor.sample();
+			monitor.start();
+		}
+		long before = allocation ? monitor.total() : 0;
+		long start = System.nanoTime();
+		long units = runWorkload(workload);
+		long nanos = System.nanoTime() - start;
+		long bytes = allocation ? monitor.finish() - before : -1;
+		out.println(RESULT + units + " " + nanos + " " + bytes);
+		out.flush();
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////////////
+	///parent side: runs, baselines and the verdict
+
+	///run the workload in a fresh JVM; returns {units, nanos, bytes}
+	private static long[] runChild(String workload)
+	throws IOException, InterruptedException
+	{
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		ProcessBuilder builder = new ProcessBuilder(java, "-Xms1g", "-Xmx1g", "-cp", System.getProperty("java.class.path"),
+													"PerfGate", "-child", workload);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = builder.start();
+		long[] result = null;
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		for(String line = in.readLine(); line != null; line = in.readLine()) {
+			if(line.startsWith(RESULT)) {
+				String[] fields = line.substring(RESULT.length()).trim().split(" ");
+				result = new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])};
+			}
+		}
+		int exit = process.waitFor();
+		if(exit != 0 || result == null) {
+			throw new IOException("workload " + workload + " failed (exit code " + exit + ")");
+		}
+		return result;
+	}
+
+	private static Measurement measure(String workload)
+	throws IOException, InterruptedException
+	{
+		runChild(workload);										///warm-up
+		double[] millis = new double[runs];
+		long[] bytes = new long[runs];
+		long units = 0;
+		long totalNanos = 0;
+		for(int r = 0; r < runs; r++) {
+			long[] result = runChild(workload);
+			units += result[0];
+			totalNanos += result[1];
+			millis[r] = result[1] / 1e6;
+			bytes[r] = result[2];
+		}
+		Arrays.sort(millis);
+		Arrays.sort(bytes);
+		Measurement m = new Measurement();
+		m.workload = workload;
+		m.units = workload.endsWith("bayespam") ? "messages" : "coordinates";
+		m.throughput = units / (totalNanos / 1e9);
+		m.p50Millis = percentile(millis, 0.5);
+		m.p90Millis = percentile(millis, 0.9);
+		m.allocatedBytes = bytes[runs / 2];
+		return m;
+	}
+
+	///nearest-rank percentile of sorted values
+	private static double percentile(double[] sorted, double p) {
+		return sorted[Math.max(0, (int)Math.ceil(p * sorted.length) - 1)];
+	}
+
+	private static File baselineFile(String workload) {
+		return new File(baselineDir, workload + ".json");
+	}
+
+	///a number field of a flat JSON object, or NaN if it is missing
+	private static double numberField(String json, String name) {
+		Matcher m = Pattern.compile("\"" + Pattern.quote(name) + "\"\\s*:\\s*(-?[0-9][0-9.eE+-]*)").matcher(json);
+		return m.find() ? Double.parseDouble(m.group(1)) : Double.NaN;
+	}
+
+	///write the measurement as the new baseline, keeping the tolerance bands of an existing file
+	private static void writeBaseline(Measurement m)
+	throws IOException
+	{
+		double throughputTolerance = THROUGHPUT_TOLERANCE;
+		double latencyTolerance = LATENCY_TOLERANCE;
+		double allocationTolerance = ALLOCATION_TOLERANCE;
+		File file = baselineFile(m.workload);
+		if(file.isFile()) {
+			String old = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			throughputTolerance = orDefault(numberField(old, "throughputTolerance"), throughputTolerance);
+			latencyTolerance = orDefault(numberField(old, "latencyTolerance"), latencyTolerance);
+			allocationTolerance = orDefault(numberField(old, "allocationTolerance"), allocationTolerance);
+		}
+		baselineDir.mkdirs();
+		String json = String.format(Locale.ROOT,
+				"{\n" +
+				"  \"workload\": \"%s\",\n" +
+				"  \"units\": \"%s\",\n" +
+				"  \"throughput\": %.1f,\n" +
+				"  \"p50Millis\": %.1f,\n" +
+				"  \"p90Millis\": %.1f,\n" +
+				"  \"allocatedBytes\": %d,\n" +
+				"  \"throughputTolerance\": %.2f,\n" +
+				"  \"latencyTolerance\": %.2f,\n" +
+				"  \"allocationTolerance\": %.2f\n" +
+				"}\n",
+				m.workload, m.units, m.throughput, m.p50Millis, m.p90Millis, m.allocatedBytes,
+				throughputTolerance, latencyTolerance, allocationTolerance);
+		Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static double orDefault(double value, double otherwise) {
+		return Double.isNaN(value) ? otherwise : value;
+	}
+
+	///compare with the baseline and print one line per metric; returns false on a regression
+	private static boolean compare(Measurement m, String baseline) {
+		boolean ok = true;
+		double throughput = numberField(baseline, "throughput");
+		double tolerance = orDefault(numberField(baseline, "throughputTolerance"), THROUGHPUT_TOLERANCE);
+		ok &= check(m.workload, "throughput (" + m.units + "/s)", m.throughput, throughput, tolerance, false);
+		double p90 = numberField(baseline, "p90Millis");
+		tolerance = orDefault(numberField(baseline, "latencyTolerance"), LATENCY_TOLERANCE);
+		ok &= check(m.workload, "p90 latency (ms)", m.p90Millis, p90, tolerance, true);
+		System.out.println(String.format(Locale.ROOT, "  %-18s %-28s %14.1f", m.workload, "p50 latency (ms)", m.p50Millis));
+		if(m.allocatedBytes >= 0) {
+			double bytes = numberField(baseline, "allocatedBytes");
+			tolerance = orDefault(numberField(baseline, "allocationTolerance"), ALLOCATION_TOLERANCE);
+			ok &= check(m.workload, "allocated bytes", m.allocatedBytes, bytes, tolerance, true);
+		}
+		return ok;
+	}
+
+	///a metric regresses when it is worse than the baseline by more than the tolerance; lowerIsBetter
+	///says which direction is worse
+	private static boolean check(String workload, String metric, double value, double baseline, double tolerance, boolean lowerIsBetter) {
+		if(Double.isNaN(baseline)) {
+			System.out.println(String.format(Locale.ROOT, "  %-18s %-28s %14.1f  (no baseline)", workload, metric, value));
+			return true;
+		}
+		double change = baseline == 0 ? 0 : (value - baseline) / baseline;
+		double worse = lowerIsBetter ? change : -change;
+		String verdict = worse > tolerance ? "REGRESSION" : -worse > tolerance ? "improved, consider -update" : "ok";
+		System.out.println(String.format(Locale.ROOT, "  %-18s %-28s %14.1f  baseline %14.1f  %+6.1f%% (band %.0f%%)  %s",
+										 workload, metric, value, baseline, 100 * change, 100 * tolerance, verdict));
+		return worse <= tolerance;
+	}
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		if(args.length == 2 && args[0].equals("-child")) {
+			child(args[1]);
+			return;
+		}
+		boolean update = false;
+		String only = null;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-runs") && i + 1 < args.length) {
+				runs = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-only") && i + 1 < args.length) {
+				only = args[++i];
+			} else if(args[i].equals("-update")) {
+				update = true;
+			} else if(args[i].equals("-baselines") && i + 1 < args.length) {
+				baselineDir = new File(args[++i]);
+			} else {
+				System.out.println( "- Error: usage: java PerfGate [-runs N] [-only workload] [-update] [-baselines dir]\n" );
+				Runtime.getRuntime().exit(2);
+			}
+		}
+		if(runs < 1 || (only != null && !Arrays.asList(WORKLOADS).contains(only))) {
+			System.out.println( "- Error: -runs must be positive and -only one of " + Arrays.toString(WORKLOADS) + "\n" );
+			Runtime.getRuntime().exit(2);
+		}
+		if(!new File("Lab1/spam-filter/train").isDirectory()) {
+			System.out.println( "- Error: run PerfGate from the repository root\n" );
+			Runtime.getRuntime().exit(2);
+		}
+
+		boolean regression = false;
+		boolean missing = false;
+		for(String workload : WORKLOADS) {
+			if(only != null && !only.equals(workload)) {
+				continue;
+			}
+			Measurement m;
+			try {
+				m = measure(workload);
+			} catch(IOException e) {
+				System.out.println( "- Error: " + e.getMessage() + "\n" );
+				missing = true;
+				continue;
+			}
+			if(update) {
+				writeBaseline(m);
+				System.out.println(String.format(Locale.ROOT, "  %-18s baseline written: %.1f %s/s, p90 %.1f ms, %d bytes",
+												 workload, m.throughput, m.units, m.p90Millis, m.allocatedBytes));
+				continue;
+			}
+			File file = baselineFile(workload);
+			if(!file.isFile()) {
+				System.out.println( "- Error: no baseline " + file + ", create it with -update\n" );
+				missing = true;
+				continue;
+			}
+			regression |= !compare(m, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		}
+		if(regression) {
+			System.out.println("Performance regression");
+			Runtime.getRuntime().exit(1);
+		}
+		if(missing) {
+			Runtime.getRuntime().exit(2);
+		}
+		System.out.println("No performance regression");
+	}
+}